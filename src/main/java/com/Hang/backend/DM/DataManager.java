@@ -5,8 +5,11 @@ import com.Hang.backend.DM.logger.Logger;
 import com.Hang.backend.DM.page.PageOne;
 import com.Hang.backend.DM.pageCache.PageCache;
 import com.Hang.backend.DM.pageCache.PageCacheImpl;
+import com.Hang.backend.DM.pageIndex.FreeSpaceMap;
 import com.Hang.backend.TM.TransactionManager;
 
+import java.util.List;
+
 public interface DataManager {
     /*
     read() 和 insert() 可能涉及磁盘 IO、缓存分配、日志写入、事务控制等多个出错点，必须显式抛出异常；
@@ -14,19 +17,30 @@ public interface DataManager {
      */
     DataItem read(long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    long insertVersion(long xid, byte[] data) throws Exception;  // 插入 VM 的一个版本（Entry），死了以后压缩时会被回收，见 Reclaimer
+    void setReclaimer(Reclaimer reclaimer);
+    long[] insertBatch(long xid, List<byte[]> data) throws Exception;  // 批量插入，返回的 uid 和 data 一一对应
+    void checkpoint();  // 刷脏页并去掉恢复用不到的日志
     void close();
 
     public static DataManager create(String path, long men, TransactionManager tm) {
-        PageCache pc = PageCache.create(path, men);
+        return create(path, men, tm, false);
+    }
+
+    public static DataManager create(String path, long men, TransactionManager tm, boolean mmap) {
+        return create(path, men, tm, mmap, PageCache.DEFAULT_PAGE_SIZE);
+    }
+
+    // mmap 为 true 时数据文件用内存映射的方式读写，见 MappedPageCacheImpl
+    // pageSize 是这个库的页大小，记在第一页的文件头里，之后 open 时从文件头读出来
+    public static DataManager create(String path, long men, TransactionManager tm, boolean mmap, int pageSize) {
+        PageCache pc = PageCache.create(path, men, mmap, pageSize);
         Logger lg = Logger.create(path);
+        FreeSpaceMap fsm = FreeSpaceMap.create(path);
 
-        DataManagerImpl dm = new DataManagerImpl(pc,lg,tm);
-        if(!dm.loadCheckPageOne()){
-            Recover.recover(tm,lg,pc);
-        }
-        dm.fillPageIndex();  // 启动的时候对每一页进行最大空闲空间的初始化操作一开始都是最大空间8kb
-        PageOne.setVcOpen(dm.pageOne);  // 就是初始化好版本控制的一个字段，一个随机数  RandomUtil.randomBytes(LEN_VC)
-        dm.pc.flushPage(dm.pageOne);  // 就是对这一页进行一个刷盘
+        DataManagerImpl dm = new DataManagerImpl(pc,lg,tm,fsm);
+        dm.initPageOne();  // 新建的文件还没有第一页，不用检查也不用恢复
+        dm.startCheckpointer();
         return dm;
     }
 
@@ -38,15 +52,23 @@ public interface DataManager {
     第一页的版本控制数据（PageOne）有效
      */
     public static DataManager open(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.open(path, mem);
+        return open(path, mem, tm, false);
+    }
+
+    public static DataManager open(String path, long mem, TransactionManager tm, boolean mmap) {
+        PageCache pc = PageCache.open(path, mem, mmap);
         Logger lg = Logger.open(path);
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
-        if(!dm.loadCheckPageOne()) {
+        FreeSpaceMap fsm = FreeSpaceMap.open(path);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, fsm);
+        boolean clean = dm.loadCheckPageOne();
+        if(!clean) {
             Recover.recover(tm, lg, pc);
         }
-        dm.fillPageIndex();
+        boolean upgraded = dm.upgradePageOne();
+        dm.fillPageIndex(clean && !upgraded);  // 升级前的 FSM 是按老格式算的，不能用
         PageOne.setVcOpen(dm.pageOne);
         dm.pc.flushPage(dm.pageOne);
+        dm.startCheckpointer();
 
         return dm;
     }
@@ -7,15 +7,26 @@ import com.Hang.backend.DM.page.Page;
 import com.Hang.backend.DM.page.PageOne;
 import com.Hang.backend.DM.page.PageX;
 import com.Hang.backend.DM.pageCache.PageCache;
+import com.Hang.backend.DM.pageIndex.FreeSpaceMap;
 import com.Hang.backend.DM.pageIndex.PageIndex;
 import com.Hang.backend.DM.pageIndex.PageInfo;
 import com.Hang.backend.TM.TransactionManager;
 import com.Hang.backend.TM.TransactionManagerImpl;
 import com.Hang.backend.common.AbstractCache;
+import com.Hang.backend.common.LongLongMap;
 import com.Hang.backend.utils.Panic;
 import com.Hang.backend.utils.Types;
 import com.Hang.common.Error;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 /**
  * DataManagerImpl 是数据库的 数据读写管理模块，负责：     DataManagerImpl 直接管理的是 DataItem，但它间接管理的是 Page 数据。
  *
@@ -25,9 +36,19 @@ import com.Hang.common.Error;
  *
  * 使用 WAL 日志保证事务一致性
  *
- * 利用 PageIndex 快速选择空闲页
+ * 利用 PageIndex 快速选择空闲页，每页的空闲空间同时记在 FreeSpaceMap 里，正常关闭后再启动时直接用它填 PageIndex。
+ * 记的空闲空间算上了无效的 DataItem 占着的空间，插入时连续的空闲空间不够，就先把这页压缩一下（见 PageX）。
+ * VM 插入的版本（insertVersion）被删掉、删除又早于所有快照之后，由 VM 注册的 Reclaimer 判定为死掉的版本，也算进去一起回收
  *
  * 管理页的缓存与释放
+ *
+ * 检查点（模糊检查点）：
+ * 所有“写日志 + 改页”的操作（insert，以及 DataItem 的 before() 到 after()/unBefore()）都持有 ckptLock 的读锁，
+ * 检查点只在拿写锁的一瞬间记下 checkpointLsn（此刻之前的日志都已经应用到页上了），
+ * 以及还在进行中的事务里最早的那条日志的 LSN，然后放开写锁，在不挡住别人的情况下把脏页全部刷盘，
+ * 最后把 min(checkpointLsn, 进行中事务最早的 LSN) 之前的日志从文件里去掉。
+ * 去掉的日志要么对应的修改已经在磁盘上了，要么属于已经结束的事务，恢复时都用不到，
+ * 恢复只需要扫描剩下的日志，启动时间和上次检查点之后的工作量成正比
  */
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
 
@@ -35,14 +56,35 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     PageCache pc;
     Logger logger;
     PageIndex pIndex;
+    FreeSpaceMap fsm;
     Page pageOne;
 
-    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
+    static final long CHECKPOINT_INTERVAL_MS = 30_000;  // 日志有增长时最多隔这么久做一次检查点
+    static final long CHECKPOINT_LOG_BYTES = 64L << 20;  // 距上次检查点的日志超过这么多字节就立刻做
+    private static final long CHECKPOINT_POLL_MS = 1_000;
+
+    private final ReadWriteLock ckptLock = new ReentrantReadWriteLock();
+    private final LongLongMap firstLsn = new LongLongMap();  // xid -> 这个事务写的第一条日志的 LSN，用 synchronized(firstLsn) 保护
+    private final Lock ckptMutex = new ReentrantLock();  // 同一时间只做一个检查点
+    private volatile long lastCheckpointLsn;
+    private volatile boolean closed;
+    private Thread checkpointer;
+    private final Object wakeup = new Object();  // close() 在上面叫醒 checkpointer
+    private final int maxFreeSpace;  // 一页最多能放多少，随页大小变
+    private volatile Reclaimer reclaimer;  // VM 注册进来的，没注册时只回收无效的 DataItem
+    private final Map<Integer, Long> deleted = new ConcurrentHashMap<>();  // 页码 -> 这页上改过版本的最大 xid，见 refreshDeleted
+    static final int REFRESH_BATCH = 64;  // 选不到页时最多重新算多少页，免得一次插入把整个库读一遍
+    private final AtomicInteger unrated = new AtomicInteger();  // 注册 reclaimer 之前就有的页，下一个还没重新算过的页号
+    private volatile int unratedEnd;  // 到这一页为止
+
+    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm, FreeSpaceMap fsm) {
         super(0);  // 这是调用了父类的AbstractCache(int maxResource)，存储maxResource
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
-        pIndex = new PageIndex();
+        this.fsm = fsm;
+        pIndex = new PageIndex(pc.getPageSize());
+        maxFreeSpace = PageX.maxFreeSpace(pc.getPageSize());
     }
 
 
@@ -61,48 +103,324 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      */
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        byte[] raw = DataItem.wrapDataItemRaw(data);
-        if(raw.length > PageX.MAX_FREE_SPACE){
+        return insertRaw(xid, DataItem.wrapDataItemRaw(data));
+    }
+
+    @Override
+    public long insertVersion(long xid, byte[] data) throws Exception {
+        return insertRaw(xid, DataItem.wrapDataItemRaw(data, true));
+    }
+
+    /*
+    启动时记的空闲空间没算死掉的版本（fillPageIndex 时 VM 还没起来），注册以后已有的每一页都要重新算一次。
+    这里只记下范围，由 refreshDeleted 在选不到页时一批一批地算，启动和单次插入都不用把整个库读一遍
+     */
+    @Override
+    public void setReclaimer(Reclaimer reclaimer) {
+        unratedEnd = pc.getPageNumber();
+        unrated.set(2);
+        this.reclaimer = reclaimer;
+    }
+
+    private long insertRaw(long xid, byte[] raw) throws Exception {
+        if(raw.length > maxFreeSpace){
             throw Error.DataTooLargeException;
         }
 
-        PageInfo pi = null;
-        for (int i = 0; i < 5; i++) {
-            pi = pIndex.select(raw.length);
-            if(pi != null){
-                break;
-            }else{
-                int newPgno = pc.newPage(PageX.initRaw());
-                pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
+        while(true){
+            long uid = insertInto(selectPage(raw.length), xid, raw);
+            if(uid >= 0){
+                return uid;
+            }
+            // 记的空闲空间比实际的多（比如 .fsm 和数据文件对不上），这一页已经按实际的空闲空间放回去了，换一页
+        }
+    }
+
+    /*
+    批量插入：一页一页地填，每一页只写一条批量插入日志（见 Recover），
+    一次 insert 一条日志一次等落盘，批量插入一页才等一次，选页、拿页、拿检查点锁也都是一页一次
+     */
+    @Override
+    public long[] insertBatch(long xid, List<byte[]> data) throws Exception {
+        byte[][] raws = new byte[data.size()][];
+        for(int i = 0; i < raws.length; i++){
+            raws[i] = DataItem.wrapDataItemRaw(data.get(i));
+            if(raws[i].length > maxFreeSpace){
+                throw Error.DataTooLargeException;
             }
         }
-        if(pi == null){
-            throw Error.DatabaseBusyException;
+
+        long[] uids = new long[raws.length];
+        int done = 0;
+        while(done < raws.length){
+            done += insertBatchInto(selectPage(raws[done].length), xid, raws, done, uids);
         }
+        return uids;
+    }
 
+    // 从 raws[from] 开始尽量多地插到 pi 这一页，uid 填进 uids，返回插了几条
+    private int insertBatchInto(PageInfo pi, long xid, byte[][] raws, int from, long[] uids) throws Exception {
         Page pg = null;
         int freeSpace = 0;
+        ckptLock.readLock().lock();
         try{
             pg = pc.getPage(pi.pgno);
+            freeSpace = PageX.getFreeSpace(pg);
+            if(freeSpace < raws[from].length){
+                freeSpace = compact(pg);
+            }
+            int count = PageX.fits(pg, raws, from);
+            if(count == 0){
+                return 0;
+            }
+            byte[] log = Recover.batchInsertLog(xid, pg, raws, from, count);
+            noteLsn(xid, logger.log(log));
+
+            pg.lock();
+            try{
+                for(int i = from; i < from + count; i++){
+                    uids[i] = Types.addressToUid(pi.pgno, PageX.insert(pg, raws[i]));
+                }
+                freeSpace = PageX.getFreeSpace(pg) + PageX.getGarbage(pg, reclaimer);
+            }finally{
+                pg.unlock();
+            }
+            return count;
+        }finally{
+            ckptLock.readLock().unlock();
+            if(pg != null){
+                pg.release();
+            }
+            addFreeSpace(pi.pgno,freeSpace);
+        }
+    }
+
+    private PageInfo selectPage(int size) throws Exception {
+        PageInfo pi = pIndex.select(size);
+        if(pi == null && refreshDeleted(size)){
+            pi = pIndex.select(size);
+        }
+        if(pi != null){
+            return pi;
+        }
+        // 没有放得下的页就新建一页自己用，不先放进 PageIndex，不然并发插入时刚建的页会被别的线程拿走
+        int newPgno = pc.newPage(PageX.initRaw(pc.getPageSize()));
+        fsm.set(newPgno, maxFreeSpace);
+        return new PageInfo(newPgno, maxFreeSpace);
+    }
+
+    // 插到 pi 这一页，放不下返回 -1
+    private long insertInto(PageInfo pi, long xid, byte[] raw) throws Exception {
+        Page pg = null;
+        int freeSpace = 0;
+        ckptLock.readLock().lock();  // 写日志和改页之间不能插进检查点
+        try{
+            pg = pc.getPage(pi.pgno);
+            freeSpace = PageX.getFreeSpace(pg);
+            if(freeSpace < raw.length){
+                freeSpace = compact(pg);
+            }
+            if(freeSpace < raw.length){
+                return -1;  // 放回去的是连续的空闲空间，下次不会再为这么大的数据选到它
+            }
             byte[] log = Recover.insertLog(xid,pg,raw);
-            logger.log(log);
+            noteLsn(xid, logger.log(log));
+
+            int slot;
+            pg.lock();  // 和后台写回的快照互斥，免得快照拷到插了一半的数据又清掉了脏标记
+            try{
+                slot = PageX.insert(pg, raw);
+                freeSpace = PageX.getFreeSpace(pg) + PageX.getGarbage(pg, reclaimer);  // 放开之后这页可能被驱逐，帧给了别的页，不能再读
+            }finally{
+                pg.unlock();
+            }
+            return Types.addressToUid(pi.pgno,slot);
+        }finally{
+            ckptLock.readLock().unlock();
+            if(pg != null){
+                pg.release();  // 这个release其实就是将数据的更改刷写到磁盘上，保证数据的一致性
+            }
+            addFreeSpace(pi.pgno,freeSpace);
+        }
+    }
+
+    /*
+    压缩 pg，回收无效的 DataItem 和死掉的版本（问 reclaimer），返回压缩后的连续空闲空间。调用方持有 ckptLock 的读锁。
+    压缩会在页内挪动记录，有别人拿着这页（缓存着的 DataItem 直接指着页里的数据）时不能压缩，只返回现在的空闲空间
+     */
+    private int compact(Page pg){
+        pg.lock();
+        try{
+            int[] slots = PageX.invalidSlots(pg, reclaimer);
+            if(slots.length > 0 && !pc.isShared(pg)){
+                logger.log(Recover.compactLog(pg.getPageNumber(), slots));
+                PageX.compact(pg, slots);
+            }
+            return PageX.getFreeSpace(pg);
+        }finally{
+            pg.unlock();
+        }
+    }
+
+    /*
+    版本被删（改 XMAX）时这页记的空闲空间不变，等删除者早于 reclaimer 的水位线、版本死了以后才能回收，可这时这页已经不会被选到了。
+    所以删过版本的页记在 deleted 里（见 logDataItem），选不到页、要新建页之前，把水位线已经越过删除者的页从 PageIndex 里拿出来
+    重新算一下放回去；deleted 里的页算完了再接着算注册 reclaimer 之前就有的页（unrated）。
+    一次最多读 REFRESH_BATCH 页，重新算出来放得下 size 就返回 true，不用再往下算了；剩下的留给下一次选不到页的插入。
+    正被别人拿着插入的页不动，插完放回去时会重新算
+     */
+    private boolean refreshDeleted(int size) throws Exception {
+        Reclaimer r = reclaimer;
+        if(r == null){
+            return false;
+        }
+        long horizon = r.horizon();
+        int budget = REFRESH_BATCH;
+        for(Map.Entry<Integer, Long> e : deleted.entrySet()){
+            if(budget == 0){
+                return false;
+            }
+            if(e.getValue() >= horizon){
+                continue;
+            }
+            PageInfo pi = pIndex.take(e.getKey());
+            if(pi == null){
+                continue;
+            }
+            deleted.remove(e.getKey(), e.getValue());
+            budget--;
+            if(rerate(pi, r) >= size){
+                return true;
+            }
+        }
+        while(budget > 0 && unrated.get() <= unratedEnd){
+            int pgno = unrated.getAndIncrement();
+            if(pgno > unratedEnd || pc.isLegacy(pgno)){
+                continue;
+            }
+            PageInfo pi = pIndex.take(pgno);
+            if(pi == null){
+                continue;
+            }
+            budget--;
+            if(rerate(pi, r) >= size){
+                return true;
+            }
+        }
+        return false;
+    }
 
-            short offset = PageX.insert(pg, raw);
-            pg.release();  // 这个release其实就是将数据的更改刷写到磁盘上，保证数据的一致性
-            return Types.addressToUid(pi.pgno,offset);
+    // 重新算 pi 这一页的空闲空间（算上死掉的版本），放回 PageIndex，返回算出来的值
+    private int rerate(PageInfo pi, Reclaimer r) throws Exception {
+        int freeSpace = pi.freeSpace;
+        Page pg = null;
+        try{
+            pg = pc.getPage(pi.pgno);
+            pg.lock();
+            try{
+                freeSpace = PageX.getFreeSpace(pg) + PageX.getGarbage(pg, r);
+            }finally{
+                pg.unlock();
+            }
         }finally{
             if(pg != null){
-                pIndex.add(pi.pgno,PageX.getFreeSpace(pg));
-            }else{
-                pIndex.add(pi.pgno,freeSpace);
+                pg.release();
             }
+            addFreeSpace(pi.pgno, freeSpace);
         }
+        return freeSpace;
+    }
+
+    // 把页放回 PageIndex，同时记到 FSM 里
+    private void addFreeSpace(int pgno, int freeSpace){
+        fsm.set(pgno, freeSpace);
+        pIndex.add(pgno, freeSpace);
+    }
+
+    /**
+     * 做一次检查点，见类注释
+     */
+    @Override
+    public void checkpoint() {
+        ckptMutex.lock();
+        try{
+            long ckptLsn;
+            long keepFrom;
+            ckptLock.writeLock().lock();
+            try{
+                ckptLsn = logger.endLsn();
+                keepFrom = ckptLsn;
+                synchronized (firstLsn){
+                    for(long xid : firstLsn.keys()){
+                        if(tm.isActive(xid)){
+                            keepFrom = Math.min(keepFrom, firstLsn.get(xid, ckptLsn));
+                        }else{
+                            firstLsn.remove(xid);  // 已经结束的事务不用再管了
+                        }
+                    }
+                }
+            }finally{
+                ckptLock.writeLock().unlock();
+            }
+
+            pc.flushAll();  // 模糊检查点：刷盘的时候别的事务照常读写
+            fsm.flush();
+            tm.sync();  // 上面当作已经结束的事务里可能有还没落盘的 abort，截掉它们的日志之前先让状态落盘
+            logger.truncateBefore(keepFrom);
+            lastCheckpointLsn = ckptLsn;
+        }finally{
+            ckptMutex.unlock();
+        }
+    }
+
+    // 后台线程：日志长得太多或者隔了太久就做一次检查点
+    void startCheckpointer(){
+        lastCheckpointLsn = logger.endLsn();
+        checkpointer = new Thread(() -> {
+            long last = System.currentTimeMillis();
+            while(true){
+                synchronized (wakeup){
+                    try{
+                        if(!closed){
+                            wakeup.wait(CHECKPOINT_POLL_MS);
+                        }
+                    }catch (InterruptedException e){
+                        return;
+                    }
+                }
+                if(closed){
+                    return;
+                }
+                long grown = logger.endLsn() - lastCheckpointLsn;
+                long now = System.currentTimeMillis();
+                if(grown >= CHECKPOINT_LOG_BYTES || (grown > 0 && now - last >= CHECKPOINT_INTERVAL_MS)){
+                    checkpoint();
+                    last = now;
+                }
+            }
+        }, "checkpointer");
+        checkpointer.setDaemon(true);
+        checkpointer.start();
     }
 
     @Override
     public void close() {
+        // 不能 interrupt：检查点正在刷页或者删日志段时被 interrupt 会把 FileChannel 关掉
+        synchronized (wakeup){
+            closed = true;
+            wakeup.notifyAll();
+        }
+        if(checkpointer != null){
+            try{
+                checkpointer.join();
+            }catch (InterruptedException e){
+                Panic.panic(e);
+            }
+        }
+        checkpoint();  // 关闭前再做一次，下次启动几乎不用扫日志
         super.close();
         logger.close();
+        fsm.close();  // 要在 ValidCheck 之前写下去，下次启动看到正常关闭才能相信 FSM
 
         PageOne.setVcClose(pageOne);
         pageOne.release();
@@ -112,7 +430,28 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     // 为xid生成日志
     public void logDataItem(long xid, DataItem di){
         byte[] log = Recover.updateLog(xid,di);
-        logger.log(log);
+        noteLsn(xid, logger.log(log));
+        if(((DataItemImpl) di).isVersioned()){  // VM 只会改版本的 XMAX，也就是删除，这页以后可能有死掉的版本
+            deleted.merge(di.page().getPageNumber(), xid, Math::max);
+        }
+    }
+
+    // 记下事务的第一条日志的 LSN
+    private void noteLsn(long xid, long lsn){
+        synchronized (firstLsn){
+            if(!firstLsn.containsKey(xid)){
+                firstLsn.put(xid, lsn);
+            }
+        }
+    }
+
+    // DataItem 修改前后调用，修改期间不能插进检查点
+    public void beginModify(){
+        ckptLock.readLock().lock();
+    }
+
+    public void endModify(){
+        ckptLock.readLock().unlock();
     }
 
     public void releaseDataItem(DataItem di){
@@ -121,11 +460,11 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     @Override
     protected DataItem getForCache(long uid) throws Exception {
-        short offset = (short) (uid & ((1L << 16) - 1));
+        int slot = (int) (uid & ((1L << 16) - 1));  // 低 16 位是槽号
         uid >>>= 32;  // >>> 是 无符号右移(两个箭头的是有符号的)，把 UID 向右移动 32 位，原高位变为低位  这个原本应该是uid = uid >>> 32;
         int pgno = (int)(uid & ((1L << 32) - 1));
         Page pg = pc.getPage(pgno);
-        return DataItem.parseDataItem(pg,offset,this);
+        return DataItem.parseDataItem(pg,slot,this);
     }
 
     @Override
@@ -135,7 +474,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     // 创建文件时初始化PageOne
     void initPageOne(){
-        int pgno = pc.newPage(PageOne.InitRaw());
+        int pgno = pc.newPage(PageOne.InitRaw(pc.getPageSize()));
         assert pgno == 1;
         try{
             pageOne = pc.getPage(pgno);
@@ -146,30 +485,67 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     }
 
     // 在打开已有文件时读取PageOne，并验证正确性
+    // 分槽页之前的文件先把所有页都当作追加格式，恢复完再由 upgradePageOne 升级
     boolean loadCheckPageOne(){
         try{
-            Page pageOne = pc.getPage(1);
+            pageOne = pc.getPage(1);
         }catch (Exception e){
             Panic.panic(e);
         }
+        if(PageOne.isAppendFormat(pageOne)){
+            pc.setLegacyPages(Integer.MAX_VALUE);
+        }else if(PageOne.checkFormat(pageOne)){
+            pc.setLegacyPages(PageOne.getLegacyPages(pageOne));
+        }else{
+            Panic.panic(Error.BadDataFileException);  // 不认识的格式
+        }
         return PageOne.checkVc(pageOne);
     }
 
+    /*
+    分槽页之前的文件（恢复之后）升级成分槽页的格式：现有的页原样留着，当作老格式的页（见 PageX），PageOne 里记下有多少页，
+    之后新建的页都是分槽页。老页的 UID 里记的是偏移，存在 B+ 树和表的记录里，不能换成槽号，所以不重排老页。
+    PageOne 马上落盘；落盘前崩溃的话下次打开还是老格式，再恢复、升级一遍。返回是不是升级了
+     */
+    boolean upgradePageOne(){
+        if(!PageOne.isAppendFormat(pageOne)){
+            return false;
+        }
+        int legacyPages = pc.getPageNumber();
+        PageOne.upgrade(pageOne, legacyPages);
+        pc.flushPage(pageOne);
+        pc.setLegacyPages(legacyPages);
+        System.out.println("Upgrade to slotted pages, " + legacyPages + " pages kept in the append format.");
+        return true;
+    }
+
     // 初始化pageIndex
     /*
-    在数据库启动时，扫描现有的所有页，并将它们初始化加入“空闲空间索引”（pIndex）中，表示这些页当前都有最大空闲空间可用。
+    在数据库启动时，把现有的所有页按空闲空间加入“空闲空间索引”（pIndex）中。
+    上次是正常关闭的（clean）就直接用 FSM 里记的空闲空间，只有 FSM 里没记的页才去读；
+    崩溃过的话恢复可能改过页，FSM 不可信，每一页都读出来算，顺便把 FSM 重新写对
      */
-    void fillPageIndex(){
+    void fillPageIndex(boolean clean){
         int pageNumber = pc.getPageNumber();
-        for(int i = 0; i <= pageNumber; i++){
-            Page pg = null;
-            try{
-                pg = pc.getPage(i);
-            }catch (Exception e){
-                Panic.panic(e);
+        for(int i = 2; i <= pageNumber; i++){  // 第一页是 PageOne，不放数据
+            if(pc.isLegacy(i)){
+                continue;  // 老格式的页不再往里插入
+            }
+            int freeSpace = clean ? fsm.get(i) : FreeSpaceMap.UNKNOWN;
+            if(freeSpace == FreeSpaceMap.UNKNOWN){
+                Page pg = null;
+                try{
+                    pg = pc.getPage(i);
+                }catch (Exception e){
+                    Panic.panic(e);
+                }
+                PageX.initIfBlank(pg);
+                freeSpace = PageX.getFreeSpace(pg) + PageX.getGarbage(pg, null);  // 启动时 VM 还没起来，只算无效记录
+                pg.release();
+                fsm.set(i, freeSpace);
             }
-            pIndex.add(pg.getPageNumber(), PageX.MAX_FREE_SPACE);
-            pg.release();
+            pIndex.add(i, freeSpace);
         }
+        fsm.flush();
     }
 }
@@ -0,0 +1,19 @@
+package com.Hang.backend.DM;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 判断一个版本（VM 用 insertVersion 插入的 DataItem）是不是已经死了：对现在还活着的和以后开始的事务都不可见。
+ * DM 算垃圾、压缩页时把死掉的版本和无效的 DataItem 一起回收。
+ * 由 VM 实现（见 VersionManagerImpl），DM 不认识版本里面的格式，只管问
+ */
+public interface Reclaimer {
+    /*
+    回收水位线：已提交的删除比它早的版本，所有事务都看得到这次删除。
+    扫一页之前取一次，同一页里的版本都和同一个水位线比
+     */
+    long horizon();
+
+    // raw 的 offset 下标开始是一个版本的数据部分
+    boolean isDead(ByteBuffer raw, int offset, long horizon);
+}
@@ -1,18 +1,20 @@
 package com.Hang.backend.DM;
 
 import com.Hang.backend.DM.dataItem.DataItem;
+import com.Hang.backend.DM.logger.LogCursor;
 import com.Hang.backend.DM.logger.Logger;
 import com.Hang.backend.DM.page.Page;
 import com.Hang.backend.DM.page.PageX;
 import com.Hang.backend.DM.pageCache.PageCache;
 import com.Hang.backend.TM.TransactionManager;
+import com.Hang.backend.TM.TransactionManagerImpl;
 import com.Hang.backend.common.SubArray;
 import com.Hang.backend.utils.Panic;
 import com.Hang.backend.utils.Parser;
 import com.google.common.primitives.Bytes;
 
-import java.sql.SQLOutput;
-import java.util.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Recover 类负责在数据库启动时执行崩溃恢复操作：通过扫描日志，确保已提交事务的数据被重做（REDO），
@@ -23,8 +25,12 @@ public class Recover {
     // 首先定义两种日志的格式 (XID 是事务的 ID，用来标识“一次操作过程”；UID 是记录的唯一 ID，用来标识“一条数据”)
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_COMPACT = 2;
+    private static final byte LOG_TYPE_BATCH_INSERT = 3;
     // updateLog: [LogType] [XID] [UID] [OldRaw] [NewRaw]
-    // insertLog: [LogType] [XID] [Pgno] [offset] [Raw]
+    // insertLog: [LogType] [XID] [Pgno] [Slot] [Raw]
+    // batchInsertLog: [LogType] [XID] [Pgno] [Slot] [Raw] [Raw] ...   一页里连续插入的多条，槽号从 Slot 开始依次加一
+    // compactLog: [LogType] [XID] [Pgno] [Slot] [Slot] ...   页内压缩，回收掉后面这些槽，XID 总是 SUPER_XID
 
     // 标记是重做还是撤销  已完成事务的就重做，未完成事务的就撤销   事务有两种完成形式：提交和回滚，事务完成了可能是提交或者回滚了，提交了的事务就是完成的事务
     // 回滚只能作用于尚未提交的事务（也就是“进行中的事务”）
@@ -32,126 +38,119 @@ public class Recover {
     private static final int UNDO = 1;
 
 
+    /*
+    恢复时日志是以映射区上的切片给出来的，解析出来的字段只记下标，不拷贝数据。
+    这两个对象在整个恢复过程中反复复用，不为每条日志分配
+     */
     static class InsertLogInfo{
         long xid;
         int pgno;
-        short offset;
-        byte[] raw;
+        int slot;  // 槽号是 2 字节的无符号数，批量插入时是第一条的槽号
+        int rawFrom;  // raw 在日志切片所在 ByteBuffer 上的起始下标
+        int rawLength;  // 批量插入时是所有 raw 的总长度，每条 raw 的长度从它自己的 Size 算出来
+        boolean batch;
+    }
+
+    static class CompactLogInfo{
+        long xid;
+        int pgno;
+        int slotsFrom;
+        int count;
     }
 
     static class UpdateLogInfo{
         long xid;
         int pgno;
-        short offset;
-        byte[] oldRaw;
-        byte[] newRaw;
+        int slot;
+        int oldRawFrom;
+        int newRawFrom;
+        int rawLength;  // oldRaw 和 newRaw 一样长
     }
 
 
+    /**
+     * 恢复只扫两遍日志：
+     * 1. 正向一遍：记录最大页号，已完成事务的日志直接重做（REDO），未完成（active）事务的日志只记下位置
+     * 2. 反向一遍：按记下的位置倒序撤销（UNDO）未完成事务的日志
+     * 原来是先扫一遍求最大页号、再扫一遍重做、再扫一遍收集撤销日志，现在合成一遍。
+     * 重做不会碰到比最大页号更大的页，所以截断放在正向扫描之后做，结果和先截断一样
+     */
     public static void recover(TransactionManager tm, Logger lg, PageCache pc){
         System.out.println("Recoverint...");
 
-        lg.rewind();  // 日志文件的前四个字节是这个日志文件的校验和，后面是一个一个独立的日志
+        LogCursor cursor = lg.cursor();  // 从最早的段开始，按 LSN 顺序读一个一个独立的日志
+        InsertLogInfo ii = new InsertLogInfo();
+        UpdateLogInfo ui = new UpdateLogInfo();
+        CompactLogInfo ci = new CompactLogInfo();
+        long[] undo = new long[64];  // 未完成事务的日志位置，按日志顺序
+        int undoSize = 0;
         int maxPgno = 0;
-        while(true){
-            byte[] log = lg.next();
-            if(log == null) break;
+        while(cursor.next()){
+            ByteBuffer log = cursor.data();
+            long xid;
             int pgno;
-            if(isInsertLog(log)){
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
+            byte type = logType(log);
+            if(type == LOG_TYPE_INSERT || type == LOG_TYPE_BATCH_INSERT){
+                parseInsertLog(log, ii);
+                xid = ii.xid;
+                pgno = ii.pgno;
+            }else if(type == LOG_TYPE_UPDATE){
+                parseUpdateLog(log, ui);
+                xid = ui.xid;
+                pgno = ui.pgno;
             }else{
-                UpdateLogInfo li = parseUpdateLog(log);
-                pgno = li.pgno;
+                parseCompactLog(log, ci);
+                xid = ci.xid;
+                pgno = ci.pgno;
             }
             if(pgno > maxPgno){
                 maxPgno = pgno;
             }
-        }
-
-        if(maxPgno == 0){
-            maxPgno = 1;
-        }
-
-        pc.truncateByPgno(maxPgno);  // 这是进行崩溃恢复，就是恢复到和日志一样的状态
-        System.out.println("Truncate to " + maxPgno + " pages.");
-        redoTranscation(tm,lg,pc);
-        System.out.println("Redo Transaction Over.");
-        undoTranscation(tm,lg,pc);
-        System.out.println("Undo Transaction Over.");
-
-        System.out.println("Recovery Over.");
-    }
-
-    // recover要做的主要就是两步：重做所有已完成事务，撤销所有未完成事务
-    private static void redoTranscation(TransactionManager tm, Logger lg, PageCache pc){
-        lg.rewind();
-        while(true){
-            byte[] log = lg.next();
-            if(log == null) break;
-            if(isInsertLog(log)){
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if(!tm.isActive(xid)){
-                    doInsertLog(pc,log,REDO);
+            if(type != LOG_TYPE_COMPACT && tm.isActive(xid)){  // 压缩不属于任何事务，总是重做
+                if(undoSize == undo.length){
+                    undo = Arrays.copyOf(undo, undoSize << 1);
                 }
+                undo[undoSize++] = cursor.position();
+            }else if(type == LOG_TYPE_INSERT || type == LOG_TYPE_BATCH_INSERT){
+                doInsertLog(pc, log, ii, REDO);
+            }else if(type == LOG_TYPE_UPDATE){
+                doUpdateLog(pc, log, ui, REDO);
             }else{
-                UpdateLogInfo li = parseUpdateLog(log);
-                long xid = li.xid;
-                if(!tm.isActive(xid)){
-                    doInsertLog(pc,log,REDO);
-                }
+                doCompactLog(pc, log, ci);
             }
         }
-    }
+        System.out.println("Redo Transaction Over.");
 
-    /*
-    收集所有未提交（active）事务的日志，缓存进内存，准备倒序地执行 UNDO 操作。
-    这里只是进行收集
-     */
-    private static void undoTranscation(TransactionManager tm, Logger lg, PageCache pc){
-        Map<Long, List<byte[]>> logCache = new HashMap<>();
-        lg.rewind();  // 这就是把position指针移到4位置，就是跳过校验和
-        while(true){
-            byte[] log = lg.next();
-            if(log == null) break;
-            if(isInsertLog(log)){
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if(tm.isActive(xid)){
-                    if(!logCache.containsKey(xid)){
-                        logCache.put(xid,new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
-                }
+        // 开始对所有active log 进行倒序undo，所有未完成事务的日志一起倒着撤销
+        for(int i = undoSize - 1; i >= 0; i--){
+            cursor.at(undo[i]);
+            ByteBuffer log = cursor.data();
+            byte type = logType(log);
+            if(type == LOG_TYPE_INSERT || type == LOG_TYPE_BATCH_INSERT){  // 压缩日志是 SUPER_XID 的，不会出现在这里
+                parseInsertLog(log, ii);
+                doInsertLog(pc, log, ii, UNDO);
             }else{
-                UpdateLogInfo li = parseUpdateLog(log);
-                long xid = li.xid;
-                if(tm.isActive(xid)){
-                    if(!logCache.containsKey(xid)){
-                        logCache.put(xid,new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
-                }
+                parseUpdateLog(log, ui);
+                doUpdateLog(pc, log, ui, UNDO);
             }
         }
+        System.out.println("Undo Transaction Over.");
 
-        // 开始对所有active log 进行倒序undo
-        for(Map.Entry<Long,List<byte[]>> entry : logCache.entrySet()){
-            List<byte[]> logs = entry.getValue();
-            for (int i = logs.size()-1; i >= 0; i--) {
-                byte[] log = logs.get(i);
-                if(isInsertLog(log)){
-                    doInsertLog(pc,log,UNDO);
-                }else{
-                    doUpdateLog(pc,log,UNDO);
-                }
-            }
+        if(maxPgno == 0){
+            maxPgno = 1;
         }
+        // 检查点会去掉旧日志，日志里的最大页号可能比磁盘上已经刷下去的页少，这些页不能截掉；
+        // 反过来日志里提到的页在文件里可能还没写下去，要把文件撑到这么大
+        maxPgno = Math.max(maxPgno, pc.getPageNumber());
+
+        pc.truncateByPgno(maxPgno);  // 这是进行崩溃恢复，就是恢复到和日志一样的状态
+        System.out.println("Truncate to " + maxPgno + " pages.");
+
+        System.out.println("Recovery Over.");
     }
 
-    private static boolean isInsertLog(byte[] log){
-        return log[0] == LOG_TYPE_INSERT; // 日志中第一个字节用来判断是插入还是更新
+    private static byte logType(ByteBuffer log){
+        return log.get(log.position()); // 日志中第一个字节用来判断是插入、更新还是压缩
     }
 
     // updateLog: [LogType] [XID] [UID] [OldRaw] [NewRaw]
@@ -166,59 +165,48 @@ public class Recover {
         byte[] uidRaw = Parser.long2Byte(di.getUid());
         byte[] oldRaw = di.getOldRaw();
         SubArray raw = di.getRaw(); // SubArray代表的是子数组，里面又raw、start以及end
-        byte[] newRaw = Arrays.copyOfRange(raw.raw,raw.start,raw.end);
+        byte[] newRaw = new byte[raw.end - raw.start];
+        raw.raw.get(raw.start, newRaw);
         return Bytes.concat(logType,xidRaw,uidRaw,oldRaw,newRaw);
     }
 
-    private static UpdateLogInfo parseUpdateLog(byte[] log){  // 先要清楚log这个逻辑日志的结构
-        UpdateLogInfo li = new UpdateLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log,OF_XID,OF_UPDATE_UID));
-        long uid = Parser.parseLong(Arrays.copyOfRange(log,OF_UPDATE_UID,OF_UPDATE_RAW));  // uid 本身就是 8 字节，就是64位的
-        li.offset = (short)(uid & ((1L << 16) - 1)); // 取低 16 位。因为uid本身就是short类型，2个字节，16位
+    private static void parseUpdateLog(ByteBuffer log, UpdateLogInfo li){  // 先要清楚log这个逻辑日志的结构
+        int base = log.position();
+        li.xid = log.getLong(base + OF_XID);
+        long uid = log.getLong(base + OF_UPDATE_UID);  // uid 本身就是 8 字节，就是64位的
+        li.slot = (int)(uid & ((1L << 16) - 1)); // 取低 16 位，就是槽号
         uid >>>= 32; // 把 uid 这个 long 类型的数向右无符号移动 32 位，保留高 32 位，丢弃低 32 位。
         li.pgno = (int)(uid & ((1L << 32) - 1)); // 取高 32 位
-        // 低 16 位是 offset（槽位号），高 32 位是页号（pgno）
-        int length = (log.length - OF_UPDATE_RAW) / 2;  // 这是oldRaw + newRaw数据的长度  raw就是原始的字节数据（raw bytes）
+        // 低 16 位是槽号，高 32 位是页号（pgno）
+        // 这是oldRaw + newRaw数据的长度  raw就是原始的字节数据（raw bytes）
         // 这里除以2了，因此[OldRaw] [NewRaw]是一样长的，并且挨着的
-        li.oldRaw = Arrays.copyOfRange(log,OF_UPDATE_RAW,OF_UPDATE_RAW+length);
-        li.newRaw = Arrays.copyOfRange(log,OF_UPDATE_RAW+length,OF_UPDATE_RAW + 2 * log.length);
-        return li;
+        li.rawLength = (log.remaining() - OF_UPDATE_RAW) / 2;
+        li.oldRawFrom = base + OF_UPDATE_RAW;
+        li.newRawFrom = li.oldRawFrom + li.rawLength;
     }
 
-    private static void doUpdateLog(PageCache pc, byte[] log, int flag){  // 这就开始执行重或者撤销操作了
-        int pgno;
-        short offset;
-        byte[] raw;
-        if(flag == REDO){
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.newRaw;  // newRaw就是获得的新值
-        }else{
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.oldRaw;  // oldRaw就是原始的旧值
-        }
+    private static void doUpdateLog(PageCache pc, ByteBuffer log, UpdateLogInfo xi, int flag){  // 这就开始执行重或者撤销操作了
+        // REDO 写 newRaw（获得的新值），UNDO 写 oldRaw（原始的旧值）
+        int from = flag == REDO ? xi.newRawFrom : xi.oldRawFrom;
 
         Page pg = null;
         try{
-            pg = pc.getPage(pgno);
+            pg = pc.getPage(xi.pgno);
         }catch (Exception e){
             Panic.panic(e);
         }
 
         try{
-            PageX.recoverUpdate(pg,raw,offset);
+            PageX.recoverUpdate(pg,log,from,xi.rawLength,xi.slot);
         }finally{
             pg.release();
         }
     }
 
-    // 就是照这个定义的：insertLog: [LogType]1 [XID]8 [Pgno]8 [Offset]2 [Raw]8
+    // 就是照这个定义的：insertLog: [LogType]1 [XID]8 [Pgno]4 [Slot]2 [Raw]，batchInsertLog 的头也一样
     private static final int OF_INSERT_PGNO = OF_XID + 8;
-    private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO + 4;
-    private static final int OF_INSERT_RAW = OF_INSERT_OFFSET + 2;
+    private static final int OF_INSERT_SLOT = OF_INSERT_PGNO + 4;
+    private static final int OF_INSERT_RAW = OF_INSERT_SLOT + 2;
 
 
     public static byte[] insertLog(long xid, Page pg, byte[] raw){  // insertLog和updateLog不一样，updateLog设计的是旧数据和新数据
@@ -226,23 +214,42 @@ public class Recover {
         byte[] logTypeRaw = {LOG_TYPE_INSERT};
         byte[] xidRaw = Parser.long2Byte(xid);
         byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        short offset = PageX.getFSO(pg);
-        byte[] offsetRaw = Parser.short2Byte(offset);
-        return Bytes.concat(logTypeRaw,xidRaw,pgnoRaw,offsetRaw,raw); // 这是往page中要插入这个raw
+        int slot = PageX.nextSlot(pg);
+        byte[] slotRaw = Parser.short2Byte((short) slot);
+        return Bytes.concat(logTypeRaw,xidRaw,pgnoRaw,slotRaw,raw); // 这是往page中要插入这个raw
     }
 
 
-    private static InsertLogInfo parseInsertLog(byte[] log){
-        InsertLogInfo li = new InsertLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log,OF_XID,OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log,OF_INSERT_PGNO,OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log,OF_INSERT_OFFSET,OF_INSERT_RAW));
-        li.raw = Arrays.copyOfRange(log,OF_INSERT_RAW,log.length);
-        return li;
+    // 把 raws[from, from+count) 依次插到 pg 的一批日志，和一条条地插是一样的效果
+    public static byte[] batchInsertLog(long xid, Page pg, byte[][] raws, int from, int count){
+        int size = OF_INSERT_RAW;
+        for(int i = from; i < from + count; i++){
+            size += raws[i].length;
+        }
+        byte[] log = new byte[size];
+        log[OF_TYPE] = LOG_TYPE_BATCH_INSERT;
+        System.arraycopy(Parser.long2Byte(xid), 0, log, OF_XID, 8);
+        System.arraycopy(Parser.int2Byte(pg.getPageNumber()), 0, log, OF_INSERT_PGNO, 4);
+        System.arraycopy(Parser.short2Byte((short) PageX.nextSlot(pg)), 0, log, OF_INSERT_SLOT, 2);
+        int pos = OF_INSERT_RAW;
+        for(int i = from; i < from + count; i++){
+            System.arraycopy(raws[i], 0, log, pos, raws[i].length);
+            pos += raws[i].length;
+        }
+        return log;
+    }
+
+    private static void parseInsertLog(ByteBuffer log, InsertLogInfo li){
+        int base = log.position();
+        li.batch = log.get(base + OF_TYPE) == LOG_TYPE_BATCH_INSERT;
+        li.xid = log.getLong(base + OF_XID);
+        li.pgno = log.getInt(base + OF_INSERT_PGNO);
+        li.slot = log.getShort(base + OF_INSERT_SLOT) & 0xFFFF;
+        li.rawFrom = base + OF_INSERT_RAW;
+        li.rawLength = log.limit() - li.rawFrom;
     }
 
-    private static void doInsertLog(PageCache pc, byte[] log, int flag){
-        InsertLogInfo li = parseInsertLog(log);
+    private static void doInsertLog(PageCache pc, ByteBuffer log, InsertLogInfo li, int flag){
         Page pg = null;
         try{
             pg = pc.getPage(li.pgno);
@@ -251,14 +258,60 @@ public class Recover {
         }
 
         try{
-            if(flag == UNDO){
-                DataItem.setDataItemRawInvalid(li.raw);  // 这个只是设置这个dataItem的raw是否有效，如果是撤销的话就设置这个原始数据raw无效即可
+            int end = li.rawFrom + li.rawLength;
+            for(int from = li.rawFrom, slot = li.slot; from < end; slot++){
+                int length = li.batch ? DataItem.rawLength(log, from) : li.rawLength;
+                if(flag == REDO){
+                    PageX.recoverInsert(pg,log,from,length,slot);
+                }else{
+                    // 撤销插入只需要把页里这个dataItem设置为无效即可，之后插入时会被压缩回收（日志本身是只读映射，不能在上面改）
+                    if(pg.isLegacy()){
+                        PageX.recoverInsert(pg,log,from,length,slot);  // 老格式的页和原来一样先把记录放回去再标无效，中间不留一段全 0
+                    }
+                    PageX.recoverInvalidate(pg,slot);
+                }
+                from += length;
             }
-            PageX.recoverInsert(pg,li.raw,li.offset);  // 不管redo还是undo都是要执行这部分的
         }finally{
             pg.release();
         }
     }
 
+    // compactLog: [LogType]1 [XID]8 [Pgno]4 [Slot]2 * N
+    private static final int OF_COMPACT_PGNO = OF_XID + 8;
+    private static final int OF_COMPACT_SLOTS = OF_COMPACT_PGNO + 4;
+
+    public static byte[] compactLog(int pgno, int[] slots){
+        byte[] log = new byte[OF_COMPACT_SLOTS + slots.length * 2];
+        log[OF_TYPE] = LOG_TYPE_COMPACT;
+        System.arraycopy(Parser.long2Byte(TransactionManagerImpl.SUPER_XID), 0, log, OF_XID, 8);
+        System.arraycopy(Parser.int2Byte(pgno), 0, log, OF_COMPACT_PGNO, 4);
+        for(int i = 0; i < slots.length; i++){
+            System.arraycopy(Parser.short2Byte((short) slots[i]), 0, log, OF_COMPACT_SLOTS + i * 2, 2);
+        }
+        return log;
+    }
+
+    private static void parseCompactLog(ByteBuffer log, CompactLogInfo li){
+        int base = log.position();
+        li.xid = log.getLong(base + OF_XID);
+        li.pgno = log.getInt(base + OF_COMPACT_PGNO);
+        li.slotsFrom = base + OF_COMPACT_SLOTS;
+        li.count = (log.limit() - li.slotsFrom) / 2;
+    }
+
+    private static void doCompactLog(PageCache pc, ByteBuffer log, CompactLogInfo li){
+        Page pg = null;
+        try{
+            pg = pc.getPage(li.pgno);
+        }catch (Exception e){
+            Panic.panic(e);
+        }
 
+        try{
+            PageX.recoverCompact(pg,log,li.slotsFrom,li.count);
+        }finally{
+            pg.release();
+        }
+    }
 }
@@ -1,13 +1,16 @@
 package com.Hang.backend.DM.dataItem;
 
 import com.Hang.backend.DM.DataManagerImpl;
+import com.Hang.backend.DM.Reclaimer;
 import com.Hang.backend.DM.page.Page;
+import com.Hang.backend.DM.page.PageX;
 import com.Hang.backend.common.SubArray;
 import com.Hang.backend.utils.Parser;
 import com.Hang.backend.utils.Types;
 import com.google.common.primitives.Bytes;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+
 
 /**
  * 存储数据的具体内容以及一些相关的元数据信息（数据的大小、有效标志等）
@@ -35,22 +38,63 @@ public interface DataItem {
     SubArray getRaw();
 
     public static byte[] wrapDataItemRaw(byte[] raw){
-        byte[] valid = new byte[1];
+        return wrapDataItemRaw(raw, false);
+    }
+
+    // versioned 为 true 表示 raw 是 VM 的一个版本（Entry），见 DataItemImpl
+    public static byte[] wrapDataItemRaw(byte[] raw, boolean versioned){
+        byte[] valid = new byte[]{versioned ? DataItemImpl.VERSIONED : 0};
         byte[] size = Parser.short2Byte((short) raw.length);
         return Bytes.concat(valid,size,raw);
     }
 
-    public static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm){ // dataItem是Page中的一部分，这个offset是对这个要操作的dataItem的偏移
-        byte[] raw = pg.getData();
-        short size = Parser.parseShort(Arrays.copyOfRange(raw,offset+DataItemImpl.OF_SIZE,offset+DataItemImpl.OF_DATA));
+    // slot 是 DataItem 在页里的槽号（UID 的低 16 位），记录在页内的偏移从槽里查
+    // 槽已经被压缩回收了（或者根本不存在）就返回一个无效的 DataItem，read 时当作没有这条数据
+    public static DataItem parseDataItem(Page pg, int slot, DataManagerImpl dm){
+        long uid = Types.addressToUid(pg.getPageNumber(),slot);
+        int offset;
+        pg.lock();  // 和压缩互斥，拿到的偏移是压缩前或者压缩后的，不会是一半
+        try{
+            offset = PageX.getSlot(pg, slot);
+        }finally{
+            pg.unlock();
+        }
+        if(offset == PageX.DEAD){
+            ByteBuffer dead = ByteBuffer.wrap(wrapDataItemRaw(new byte[0]));
+            setDataItemRawInvalid(dead, 0);
+            return new DataItemImpl(new SubArray(dead,0,dead.capacity()),new byte[dead.capacity()],pg,uid,dm);
+        }
+        ByteBuffer raw = pg.getData();
+        int start = pg.getOffset() + offset;  // 页在帧数组里的起始下标加上页内偏移
         // 数据项DataItem的长度
-        short length = (short)(size + DataItemImpl.OF_DATA);
-        long uid = Types.addressToUid(pg.getPageNumber(),offset);
-        return new DataItemImpl(new SubArray(raw,offset,offset+length),new byte[length],pg,uid,dm);
+        int length = rawLength(raw, start);
+        return new DataItemImpl(new SubArray(raw,start,start+length),new byte[length],pg,uid,dm);
+    }
+
+    // 从 raw 的 offset 下标开始的那个 DataItem 的总长度，Size 是 2 字节的无符号数，大页里的数据项可以超过 32KB
+    public static int rawLength(byte[] raw, int offset){
+        return (Parser.parseShort(raw, offset+DataItemImpl.OF_SIZE) & 0xFFFF) + DataItemImpl.OF_DATA;
+    }
+
+    // 同上，DataItem 在 buf 的 offset 下标处（页帧上，或者恢复时在日志上）
+    public static int rawLength(ByteBuffer buf, int offset){
+        return (buf.getShort(offset+DataItemImpl.OF_SIZE) & 0xFFFF) + DataItemImpl.OF_DATA;
+    }
+
+    public static boolean isRawValid(ByteBuffer raw, int offset){
+        return (raw.get(offset + DataItemImpl.OF_VALID) & DataItemImpl.INVALID) == 0;
+    }
+
+    // 从 raw 的 offset 下标开始的那个 DataItem 是不是一个死掉的版本，不是版本的 DataItem 不归 reclaimer 管
+    public static boolean isRawDead(ByteBuffer raw, int offset, Reclaimer reclaimer, long horizon){
+        return (raw.get(offset + DataItemImpl.OF_VALID) & DataItemImpl.VERSIONED) != 0
+                && reclaimer.isDead(raw, offset + DataItemImpl.OF_DATA, horizon);
     }
 
-    public static void setDataItemRawInvalid(byte[] raw){
-        raw[DataItemImpl.OF_VALID] = (byte)1;  // 失效
+    // 把从 raw 的 offset 下标开始的那个 DataItem 标记为失效（offset 要算上页在帧数组里的起始下标）
+    public static void setDataItemRawInvalid(ByteBuffer raw, int offset){
+        int pos = offset + DataItemImpl.OF_VALID;
+        raw.put(pos, (byte) (raw.get(pos) | DataItemImpl.INVALID));  // 失效
     }
 
 }
@@ -10,7 +10,8 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * dataItem中保存的数据是这样的：[ValidFlag] [DataSize] [Data]    每个page里面管理一个个dataItem
- * validFlag占一个字节，标志这个DataItem是否有效
+ * validFlag占一个字节，标志这个DataItem是否有效：最低位 INVALID 置上就是失效了，VERSIONED 位表示这是 VM 插入的一个版本（Entry），
+ * 压缩时 DM 会问 Reclaimer 它是不是已经死了（见 DataManagerImpl）。以前的数据这一位都是 0，当作普通数据，不会被当成版本回收
  * DataSize占两个字节，标志后面Data的长度
  * 其余都是Data
  */
@@ -20,6 +21,9 @@ public class DataItemImpl implements DataItem {
     static final int OF_SIZE = 1; // 长度字段偏移量
     static final int OF_DATA = 3; // 数据字段的偏移量
 
+    static final byte INVALID = 1;  // ValidFlag 的两个标志位
+    static final byte VERSIONED = 2;
+
     private SubArray raw; // 原始数据
     private byte[] oldRaw; // 旧的原始数据
     private DataManagerImpl dm; // 数据管理器
@@ -47,7 +51,11 @@ public class DataItemImpl implements DataItem {
     }
 
     public boolean isValid(){
-        return raw.raw[raw.start+OF_VALID] == (byte)0;
+        return (raw.raw.get(raw.start+OF_VALID) & INVALID) == 0;
+    }
+
+    public boolean isVersioned(){
+        return (raw.raw.get(raw.start+OF_VALID) & VERSIONED) != 0;
     }
 
     @Override
@@ -68,9 +76,11 @@ public class DataItemImpl implements DataItem {
      */
     @Override
     public void before() {
+        dm.beginModify();  // 从这里到 after()/unBefore() 之间不能插进检查点
         wLock.lock();
+        pg.beginUnlogged();  // 日志写完之前这页不能写回磁盘
         pg.setDirty(true);
-        System.arraycopy(raw.raw,raw.start,oldRaw,0,oldRaw.length);  // 备份原始数据
+        raw.raw.get(raw.start,oldRaw);  // 备份原始数据
     }
 
     /*
@@ -78,14 +88,18 @@ public class DataItemImpl implements DataItem {
      */
     @Override
     public void unBefore() {
-        System.arraycopy(oldRaw,0,raw.raw,raw.start,oldRaw.length);
+        raw.raw.put(raw.start,oldRaw);
+        pg.endUnlogged();
         wLock.unlock();
+        dm.endModify();
     }
 
     @Override
     public void after(long xid) {
         dm.logDataItem(xid,this);
-        wLock.lock();
+        pg.endUnlogged();
+        wLock.unlock();
+        dm.endModify();
     }
 
     @Override
@@ -0,0 +1,146 @@
+package com.Hang.backend.DM.logger;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * 日志的只读游标，用于恢复时顺序（或倒序）扫描日志
+ *
+ * 日志按段一段一段地内存映射，每条日志以映射区上的切片形式返回：
+ * data() 返回的 ByteBuffer 的 [position, limit) 就是当前日志的 Data 部分，
+ * 游标内部只复用同一个视图对象，不会为每条日志分配数组或拷贝数据。
+ * 所以 data() 返回的切片只在下一次调用 next()/at() 之前有效，需要留着的话调用方自己拷贝
+ *
+ * 位置都用 LSN 表示。每条日志读出来时都会校验它自己的 Checksum，
+ * 封存的段读到 End 就接着读下一个段，没封存的段校验失败（坏尾）或者读到 limit 就当作日志到头了
+ *
+ * 游标打开期间不能去掉它用到的段（检查点只在恢复之后才会做）
+ */
+public class LogCursor {
+    private final LogSegment[] segs;  // 按段号连续排好
+    private final int[] limits;  // 每个段最多读到哪里
+
+    private int segIdx = -1;  // 当前映射的是哪个段
+    private MappedByteBuffer window;  // 当前段的映射
+    private ByteBuffer view;  // window 的复用视图，用来给出当前日志的切片
+    private ByteBuffer scratch;  // window 的另一个视图，算校验和的时候用，不动给调用方的 view
+    private final CRC32C crc = new CRC32C();
+
+    private long current = -1;  // 当前日志的 LSN
+    private long nextPos;  // 下一条日志的 LSN
+
+    LogCursor(LogSegment[] segs, int[] limits, long begin) {
+        this.segs = segs;
+        this.limits = limits;
+        this.nextPos = begin;
+    }
+
+    /**
+     * 读下一条日志，没有了（或者遇到坏尾）返回 false
+     */
+    public boolean next(){
+        while(true){
+            if(at(nextPos)){
+                return true;
+            }
+            if(LoggerImpl.offset(nextPos) < LogSegment.HEADER_SIZE){
+                // 上一个段正好写满，nextPos 已经是下一个段的开头，跳过它的 Header
+                nextPos = LoggerImpl.lsn(LoggerImpl.segNo(nextPos), LogSegment.HEADER_SIZE);
+                continue;
+            }
+            // 只有封存的段读到了 End 才换到下一个段
+            int i = indexOf(LoggerImpl.segNo(nextPos));
+            if(i < 0 || !segs[i].isSealed() || LoggerImpl.offset(nextPos) < segs[i].end || i + 1 >= segs.length){
+                return false;
+            }
+            nextPos = LoggerImpl.lsn(segs[i + 1].segNo, LogSegment.HEADER_SIZE);
+        }
+    }
+
+    /**
+     * 定位到 lsn 位置的日志并读出来，lsn 必须是某条日志的开头（比如之前 position() 记下来的）
+     */
+    public boolean at(long lsn){
+        int i = indexOf(LoggerImpl.segNo(lsn));
+        if(i < 0){
+            return false;
+        }
+        int off = LoggerImpl.offset(lsn);
+        int limit = limits[i];
+        if(off < LogSegment.HEADER_SIZE || off + LoggerImpl.OF_DATA > limit){
+            return false;
+        }
+        map(i);
+        int size = window.getInt(off + LoggerImpl.OF_SIZE);
+        if(size <= 0 || off + LoggerImpl.OF_DATA + size > limit){  // 预分配的空间全是 0，size 为 0 就是到头了
+            return false;
+        }
+        int checksum = window.getInt(off + LoggerImpl.OF_CHECKSUM);
+        int from = off + LoggerImpl.OF_DATA;
+        if(segs[i].checksum(scratch, from, from + size, crc) != checksum){
+            return false;
+        }
+        current = lsn;
+        nextPos = lsn + LoggerImpl.OF_DATA + size;
+        view.limit(from + size);  // 先设 limit 再设 position，避免 position > 旧 limit 报错
+        view.position(from);
+        return true;
+    }
+
+    /**
+     * 当前日志的 Data 部分，[position, limit) 之间就是数据，调用方只用绝对下标读，不要改 position/limit
+     */
+    public ByteBuffer data(){
+        return view;
+    }
+
+    /**
+     * 当前日志的 LSN
+     */
+    public long position(){
+        return current;
+    }
+
+    /**
+     * 当前日志结尾的 LSN；扫到坏尾时它就是最后一条合法日志的结尾
+     */
+    public long nextPosition(){
+        return nextPos;
+    }
+
+    /**
+     * 当前日志整条（包括 Size、Checksum 和 Data）的校验和，在 xCheck 的基础上继续算，用来累计旧版本段的 SegChecksum
+     */
+    int checksumWholeLog(int xCheck){
+        int from = view.position() - LoggerImpl.OF_DATA;
+        return LoggerImpl.calChecksum(xCheck, window, from, view.limit());
+    }
+
+    /**
+     * 把当前日志整条累加到 segCrc 上，用来累计新版本段的 SegChecksum
+     */
+    void checksumWholeLog(CRC32C segCrc){
+        scratch.clear();
+        scratch.position(view.position() - LoggerImpl.OF_DATA).limit(view.limit());
+        segCrc.update(scratch);
+    }
+
+    private int indexOf(long segNo){
+        if(segs.length == 0){
+            return -1;
+        }
+        long i = segNo - segs[0].segNo;
+        return i >= 0 && i < segs.length ? (int) i : -1;
+    }
+
+    private void map(int i){
+        if(segIdx == i){
+            return;
+        }
+        window = segs[i].map(limits[i]);
+        view = window.duplicate();
+        scratch = window.duplicate();
+        segIdx = i;
+    }
+}
@@ -0,0 +1,204 @@
+package com.Hang.backend.DM.logger;
+
+import com.Hang.backend.utils.Panic;
+import com.Hang.common.Error;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32C;
+
+/**
+ * 日志的一个段文件
+ *
+ * 段文件创建时就按 LoggerImpl.SEGMENT_SIZE 预先分配好并填满 0，之后的追加写都落在已经分配好的空间里，不会改变文件大小等元数据。
+ * 段文件的格式为：
+ * [Header] [Log1] [Log2] ... [LogN] [0...]
+ * Header 为：
+ * [Magic 4] [Version 4] [SegNo 8] [End 4] [SegChecksum 4] [保留 8]
+ * End 为 0 表示这个段还在写（活跃段或者预分配好的备用段），
+ * 写满换段时把 End（最后一条日志的结尾）和 SegChecksum（[HEADER_SIZE, End) 的校验和）写进 Header，这个段就封存了，之后只读
+ *
+ * 第 segNo 个段里文件偏移为 off 的日志，LSN 为 segNo * SEGMENT_SIZE + off，日志不会跨段
+ *
+ * Version 决定这个段里的校验和怎么算：
+ * 1：每条日志的 Checksum 和 SegChecksum 都是原来的逐字节乘 SEED 累加
+ * 2：都是 CRC32C（java.util.zip.CRC32C，有硬件指令加速）
+ * 新建的段都是 VERSION，旧版本的段仍然可以读，打开时如果活跃段是旧版本就直接封存，之后的日志写到新版本的段里
+ */
+class LogSegment {
+    static final int MAGIC = 0x514c4f47;  // "QLOG"
+    static final int VERSION_SEED = 1;
+    static final int VERSION_CRC32C = 2;
+    static final int VERSION = VERSION_CRC32C;  // 新建的段用的版本
+
+    static final int OF_MAGIC = 0;
+    static final int OF_VERSION = OF_MAGIC + 4;
+    static final int OF_SEG_NO = OF_VERSION + 4;
+    static final int OF_END = OF_SEG_NO + 8;
+    static final int OF_SEG_CHECKSUM = OF_END + 4;
+    static final int HEADER_SIZE = 32;
+
+    static final String SEG_SUFFIX = ".seg";
+
+    private static final int ZERO_CHUNK = 1 << 20;
+
+    final long segNo;
+    final File file;
+    private RandomAccessFile raf;
+    final FileChannel fc;
+    int version;
+    int end;  // 封存的段是最后一条日志的结尾，没封存的是 0
+    int checksum;  // 封存的段的 SegChecksum
+
+    private LogSegment(long segNo, File file, RandomAccessFile raf) {
+        this.segNo = segNo;
+        this.file = file;
+        this.raf = raf;
+        this.fc = raf.getChannel();
+    }
+
+    static File fileOf(File dir, long segNo){
+        return new File(dir, String.format("%016x", segNo) + SEG_SUFFIX);
+    }
+
+    /**
+     * 从文件名解析段号，不是段文件返回 -1
+     */
+    static long segNoOf(File f){
+        String name = f.getName();
+        if(!name.endsWith(SEG_SUFFIX) || name.length() != 16 + SEG_SUFFIX.length()){
+            return -1;
+        }
+        try{
+            return Long.parseUnsignedLong(name.substring(0, 16), 16);
+        }catch (NumberFormatException e){
+            return -1;
+        }
+    }
+
+    /**
+     * 新建一个段：整个文件先写满 0，再写 Header，force 之后文件大小就不会再变了
+     */
+    static LogSegment create(File dir, long segNo, int size){
+        File f = fileOf(dir, segNo);
+        LogSegment seg = null;
+        try{
+            seg = new LogSegment(segNo, f, new RandomAccessFile(f, "rw"));
+            seg.fc.truncate(0);
+            ByteBuffer zero = ByteBuffer.allocateDirect(ZERO_CHUNK);
+            for(long pos = 0; pos < size; pos += ZERO_CHUNK){
+                zero.clear();
+                zero.limit((int) Math.min(ZERO_CHUNK, size - pos));
+                while(zero.hasRemaining()){
+                    seg.fc.write(zero, pos + zero.position());
+                }
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(OF_MAGIC, MAGIC);
+            header.putInt(OF_VERSION, VERSION);
+            header.putLong(OF_SEG_NO, segNo);
+            seg.fc.write(header, 0);
+            seg.fc.force(true);  // 文件大小变了，元数据也要落盘
+            seg.version = VERSION;
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+        return seg;
+    }
+
+    /**
+     * 打开一个已有的段，检查 Header；封存的段还要检查 SegChecksum
+     */
+    static LogSegment open(File f, long segNo, int size){
+        LogSegment seg = null;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try{
+            seg = new LogSegment(segNo, f, new RandomAccessFile(f, "rw"));
+            if(seg.fc.size() != size){
+                Panic.panic(Error.BadLogFileException);
+            }
+            seg.fc.read(header, 0);
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+        seg.version = header.getInt(OF_VERSION);
+        if(header.getInt(OF_MAGIC) != MAGIC || seg.version < VERSION_SEED || seg.version > VERSION
+                || header.getLong(OF_SEG_NO) != segNo){
+            Panic.panic(Error.BadLogFileException);
+        }
+        seg.end = header.getInt(OF_END);
+        seg.checksum = header.getInt(OF_SEG_CHECKSUM);
+        if(seg.isSealed()){
+            if(seg.end < HEADER_SIZE || seg.end > size
+                    || seg.checksum(seg.map(seg.end), HEADER_SIZE, seg.end, new CRC32C()) != seg.checksum){
+                Panic.panic(Error.BadLogFileException);
+            }
+        }
+        return seg;
+    }
+
+    /**
+     * 按这个段的版本算 buf 里 [from, to) 的校验和
+     * buf 的 position/limit 会被改掉，调用方传一个自己的视图进来；crc 由调用方复用
+     */
+    int checksum(ByteBuffer buf, int from, int to, CRC32C crc){
+        if(version == VERSION_SEED){
+            return LoggerImpl.calChecksum(0, buf, from, to);
+        }
+        return LoggerImpl.crc32c(crc, buf, from, to);
+    }
+
+    boolean isSealed(){
+        return end != 0;
+    }
+
+    /**
+     * 封存：先把日志 force 下去，再把 End 和 SegChecksum 写进 Header 并 force，之后这个段只读
+     */
+    void seal(int end, int checksum){
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        buf.putInt(0, end);
+        buf.putInt(4, checksum);
+        try{
+            fc.force(false);  // Header 不能先于日志落盘
+            fc.write(buf, OF_END);
+            fc.force(false);
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+        this.end = end;
+        this.checksum = checksum;
+    }
+
+    /**
+     * 只读映射 [0, len)
+     */
+    MappedByteBuffer map(int len){
+        MappedByteBuffer buf = null;
+        try{
+            buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, len);
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+        return buf;
+    }
+
+    void close(){
+        try{
+            fc.close();
+            raf.close();
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+    }
+
+    void delete(){
+        close();
+        if(!file.delete()){
+            Panic.panic(Error.FileCannotRWException);
+        }
+    }
+}
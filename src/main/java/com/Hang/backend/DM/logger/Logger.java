@@ -1,13 +1,9 @@
 package com.Hang.backend.DM.logger;
 
 import com.Hang.backend.utils.Panic;
-import com.Hang.backend.utils.Parser;
 import com.Hang.common.Error;
 
 import java.io.File;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.RandomAccess;
 
 /**
@@ -22,72 +18,87 @@ import java.util.RandomAccess;
 /**
  * Logger 用于管理数据库操作日志（WAL）的写入、读取与重放，是事务持久性与崩溃恢复的关键模块。
  *
- * 这个 Logger 接口是面向 一个日志文件（log file） 的操作抽象，它提供对这个文件中的多条日志记录的统一读写接口。
+ * 这个 Logger 接口是面向 一份日志（由若干个段文件组成） 的操作抽象，它提供对其中多条日志记录的统一读写接口。
  */
 
 public interface Logger {
-    void log(byte[] data);
-    void truncate(long x) throws Exception;
+    long log(byte[] data);  // 返回这条日志的 LSN
     byte[] next();
     void rewind();
+
+    /**
+     * 从第一条日志开始的只读游标，日志以切片形式返回，用于恢复时的大批量扫描
+     */
+    LogCursor cursor();
     void close();
 
-    public static Logger create(String path){
-        File f = new File(path + LoggerImpl.LOG_SUFFIX);
-        try{
-            if(!f.createNewFile()){
-                Panic.panic(Error.FileNotExistsException);
-            }
-        }catch (Exception e){
-            Panic.panic(e);
-        }
+    /**
+     * 设置组提交的参数：一批最多 maxBatch 条日志，flusher 最多等 maxWaitMicros 微秒来凑一批
+     * maxBatch = 1 且 maxWaitMicros = 0 就退化成每条日志刷一次盘
+     */
+    void setGroupCommit(int maxBatch, long maxWaitMicros);
 
-        if(!f.canRead() || !f.canWrite()){
-            Panic.panic(Error.FileCannotRWException);
-        }
+    /**
+     * 下一条日志的 LSN，也就是目前所有日志的结尾
+     */
+    long endLsn();
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
+    /**
+     * 检查点用：删掉整段都在 lsn 之前的日志段
+     */
+    void truncateBefore(long lsn);
 
-        try{
-            raf = new RandomAccessFile(f,"rw");
-            fc = raf.getChannel();
-        }catch (Exception e){
-            Panic.panic(e);
+    public static Logger create(String path){
+        File dir = new File(path + LoggerImpl.LOG_SUFFIX);  // 日志是一个目录，里面是一个个段文件
+        if(!dir.mkdir()){
+            Panic.panic(Error.FileExistsException);
         }
 
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));  // 这就是四个字节 全零
-        try{
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
-        }catch (Exception e){
-            Panic.panic(e);
+        if(!dir.canRead() || !dir.canWrite()){
+            Panic.panic(Error.FileCannotRWException);
         }
 
-        return new LoggerImpl(raf,fc,0);
+        LoggerImpl lg = new LoggerImpl(dir);
+        lg.create();
+        return lg;
     }
 
     public static Logger open(String path){
-        File f = new File(path + LoggerImpl.LOG_SUFFIX);
-        if(!f.exists()){
-            Panic.panic(Error.FileNotExistsException);
-        }
-        if(!f.canRead() || !f.canWrite()){
+        File dir = new File(path + LoggerImpl.LOG_SUFFIX);
+        File legacy = new File(path + LoggerImpl.LOG_SUFFIX + LoggerImpl.LEGACY_SUFFIX);
+
+        // 以前的日志是一个单独的文件，先改名让出位置，再迁移成段；迁移到一半崩溃的话，下次打开时旧文件还在，重新迁移一遍
+        if(dir.isFile() && !dir.renameTo(legacy)){
             Panic.panic(Error.FileCannotRWException);
         }
+        if(legacy.exists()){
+            File[] old = dir.listFiles();
+            if(old != null){
+                for(File f : old){
+                    f.delete();
+                }
+            }
+            if(!dir.exists() && !dir.mkdir()){
+                Panic.panic(Error.FileCannotRWException);
+            }
+            LoggerImpl lg = new LoggerImpl(dir);
+            lg.create();
+            lg.migrate(legacy);
+            if(!legacy.delete()){
+                Panic.panic(Error.FileCannotRWException);
+            }
+            lg.rewind();
+            return lg;
+        }
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-
-        try{
-            raf = new RandomAccessFile(f,"rw");
-            fc = raf.getChannel();
-        }catch (Exception e){
-            Panic.panic(e);
+        if(!dir.exists()){
+            Panic.panic(Error.FileNotExistsException);
+        }
+        if(!dir.canRead() || !dir.canWrite()){
+            Panic.panic(Error.FileCannotRWException);
         }
 
-        LoggerImpl lg = new LoggerImpl(raf,fc);
+        LoggerImpl lg = new LoggerImpl(dir);
         lg.init();
 
         return lg;
@@ -9,157 +9,302 @@ import java.io.File;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
 
 /**
- * 日志文件读写
+ * 日志读写
  *
- * 日志文件标准格式为:
- * [XChecksum] [Log1] [Log2] [] ... [LogN] [BadTail]   position是对单个日志记录的指向 指向这里面的一个个log
- * XChectsum 为后续所有日志计算的Checksum, int类型
+ * 日志放在 path.log 这个目录下，分成一个个固定大小、预先分配好的段文件（见 LogSegment）：
+ * [Header] [Log1] [Log2] ... [LogN] [0...]
+ * 段按段号依次写，写满就封存（把 End 和整个段的 SegChecksum 写进 Header），换到预先分配好的下一个段。
+ * 追加日志只是往已经分配好的空间里写，不改变文件大小，也不用再像以前那样每次都回到文件开头改写整个文件的 XChecksum，
+ * 没封存的段靠每条日志自己的 Checksum 找到坏尾。检查点之后，整段都在检查点之前的段直接删掉
  *
  * 每条正确日志的格式为：
  * [Size] [Checksum] [Data]    ===   这里的 Data 就是 insert、update 等类型日志的原始内容，它们格式不一样，都是已经由别的方法生成好的。
  *                                   wraplog在外面包size以及校验和字段
  * Size 4字节 int标识Data长度
- * Checksum 4字节 int
+ * Checksum 4字节 int，Data 的 CRC32C（旧版本的段里是逐字节乘 SEED 累加的校验和，见 LogSegment 的 Version）
+ *
+ * 组提交（group commit）：并发调用 log() 的线程先把日志放进 pending 队列，
+ * 由其中一个线程当 flusher，把攒下的一批日志一次写进段文件，只 force 一次，
+ * 再把这一批的所有调用者一起唤醒。log() 返回时自己的日志一定已经落盘。
+ * maxBatch 是一批最多多少条，maxWait 是 flusher 最多等多久来凑满一批（默认不等，fsync 期间到达的日志自然会攒成下一批）
+ *
+ * LSN：第 segNo 个段里文件偏移为 off 的日志，LSN = segNo * SEGMENT_SIZE + off。日志不跨段，段尾放不下的日志放到下一个段的开头
+ *
+ * 以前的单文件日志（path.log 是个文件）在 open 时迁移成段（见 Logger.open）
  */
 public class LoggerImpl implements Logger{
 
     private static final int SEED = 13331; // 这是自己任意取的一个常数，用于计算日志文件的校验和
 
     // 一个正确日志的组成就是  size + checksum + data三部分 OF表示这些对应字段的偏移量---这些只是针对单个日志的相对数据偏移量
-    private static final int OF_SIZE = 0; // 这表示size字段的偏移量
-    private static final int OF_CHECKSUM = OF_SIZE + 4;  // 这表示校验和字段的偏移量
-    private static final int OF_DATA = OF_CHECKSUM + 4;  // 这表示data数据字段的偏移量
+    static final int OF_SIZE = 0; // 这表示size字段的偏移量
+    static final int OF_CHECKSUM = OF_SIZE + 4;  // 这表示校验和字段的偏移量
+    static final int OF_DATA = OF_CHECKSUM + 4;  // 这表示data数据字段的偏移量
 
     public static final String LOG_SUFFIX = ".log";  // suffix表示后缀
+    static final String LEGACY_SUFFIX = ".legacy";  // 迁移时旧的单文件日志先改成这个名字
 
-    private RandomAccessFile file;
-    private FileChannel fc;
-    private Lock lock;
+    static final int SEGMENT_SIZE = 16 << 20;  // 每个段 16MB
+
+    static final int DEFAULT_MAX_BATCH = 256;
+    static final long DEFAULT_MAX_WAIT_MICROS = 0;
 
-    private long position;  // 当前日志指针的位置
-    private long fileSize;  // 初始化时记录，log操作不更新
-    private int xChecksum;
+    private File dir;
+    private Lock lock;
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc){
-        this.file = raf;
-        this.fc = fc;
+    private TreeMap<Long, LogSegment> segments;  // 封存的段和活跃段，由 lock 保护
+    private LogSegment active;  // 正在写的段，只有 flusher 会动它
+    private LogSegment spare;  // 预分配好的下一个段，后台还在准备时是 null，由 lock 保护
+    private boolean preparing;  // 后台是否正在准备下一个备用段，由 lock 保护
+    private Condition spareReady;  // 后台准备好备用段时唤醒等着换段的 flusher
+    private int writePos;  // active 里下一条日志写到哪，只有 flusher 会动它
+    private CRC32C segCrc;  // active 里已经写下的日志的 CRC32C，封存时写进 Header
+
+    private LogCursor reader;  // next() 用的游标，rewind() 时重新创建
+    private long tail;  // 下一条进入队列的日志的 LSN，由 lock 保护
+    private long flushedLsn;  // 已经落盘的日志的结尾，由 lock 保护
+
+    // 组提交相关，都由 lock 保护
+    private Condition batchFull;  // 队列攒满 maxBatch 条时通知正在凑批的 flusher
+    private Condition flushed;  // 一批日志落盘后唤醒等待的调用者
+    private List<byte[]> pending;  // 还没写进文件的日志
+    private long appended;  // 已经进入队列的日志条数（当作序号用）
+    private long durable;  // 已经落盘的日志条数，序号 <= durable 的日志都已经 force 过了
+    private boolean flushing;  // 是否有线程正在当 flusher
+    private int maxBatch;
+    private long maxWaitNanos;
+
+    LoggerImpl(File dir){
+        this.dir = dir;
         lock = new ReentrantLock();
+        batchFull = lock.newCondition();
+        flushed = lock.newCondition();
+        spareReady = lock.newCondition();
+        pending = new ArrayList<>();
+        segments = new TreeMap<>();
+        maxBatch = DEFAULT_MAX_BATCH;
+        maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(DEFAULT_MAX_WAIT_MICROS);
     }
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int xChecksum){
-        this.file = raf;
-        this.fc = fc;
-        this.xChecksum = xChecksum;
-        lock = new ReentrantLock();
+    static long lsn(long segNo, int offset){
+        return segNo * SEGMENT_SIZE + offset;
+    }
+
+    static long segNo(long lsn){
+        return lsn / SEGMENT_SIZE;
+    }
+
+    static int offset(long lsn){
+        return (int) (lsn % SEGMENT_SIZE);
     }
 
+    // 新建的日志：第 0 段作为活跃段，再预分配好第 1 段
+    void create(){
+        setActive(LogSegment.create(dir, 0, SEGMENT_SIZE), LogSegment.HEADER_SIZE, new CRC32C());
+        spare = LogSegment.create(dir, 1, SEGMENT_SIZE);
+        syncDir();
+    }
+
+    /**
+     * 打开已有的日志：封存的段在 LogSegment.open 里校验 SegChecksum，
+     * 第一个没封存的段就是活跃段，扫一遍找到坏尾，它后面的段只能是空的备用段
+     */
     void init(){
-        long size = 0;
-        try{
-            size = file.length();
-        } catch (Exception e){
-            Panic.panic(e);
+        File[] files = dir.listFiles();
+        if(files == null){
+            Panic.panic(Error.FileCannotRWException);
         }
-
-        if(size < 4){
-            Panic.panic(Error.BadLogFileException);
+        TreeMap<Long, File> found = new TreeMap<>();
+        for(File f : files){
+            long segNo = LogSegment.segNoOf(f);
+            if(segNo >= 0){
+                found.put(segNo, f);
+            }
         }
 
-        ByteBuffer raw = ByteBuffer.allocate(4);
-        try{
-            fc.position(0);
-            fc.read(raw);
-        }catch (Exception e){
-            Panic.panic(e);
+        long expect = found.isEmpty() ? 0 : found.firstKey();
+        for(Map.Entry<Long, File> e : found.entrySet()){
+            if(e.getKey() != expect++){  // 段号必须是连续的
+                Panic.panic(Error.BadLogFileException);
+            }
+            if(spare != null){
+                e.getValue().delete();  // 多出来的备用段
+                continue;
+            }
+            LogSegment seg = LogSegment.open(e.getValue(), e.getKey(), SEGMENT_SIZE);
+            if(active != null){
+                if(seg.isSealed()){
+                    Panic.panic(Error.BadLogFileException);
+                }
+                spare = seg;
+            }else if(seg.isSealed()){
+                segments.put(seg.segNo, seg);
+            }else{
+                active = seg;
+            }
         }
 
-        int xChecksum = Parser.parseInt(raw.array());
-        this.fileSize = size;
-        this.xChecksum = xChecksum;
-
+        if(active == null){
+            // 最后一个段刚封存还没来得及换段就崩溃了，或者目录是空的
+            long segNo = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+            active = LogSegment.create(dir, segNo, SEGMENT_SIZE);
+        }
         checkAndRemoveTail();
+        lock.lock();
+        try{
+            if(spare == null && !preparing){  // 活跃段正好写满时 checkAndRemoveTail 里换过段，后台已经在准备了
+                spare = LogSegment.create(dir, active.segNo + 1, SEGMENT_SIZE);
+            }
+        }finally{
+            lock.unlock();
+        }
+        syncDir();
     }
 
-    // 检查并移除bad tail----打开一个日志，肯定要先检查校验和，然后移除坏尾（坏尾就是没来得几写完的日志数据）
+    // 检查并移除活跃段的 bad tail（坏尾就是没来得几写完的日志数据），顺便算出活跃段已有日志的校验和
     private void checkAndRemoveTail(){
-        rewind();
-
-        int xCheck = 0;
-        while(true){
-            byte[] log = internNext();
-            if(log == null){  // 这说明已经有问题了，不用继续计算校验和进行检查了
-                break;
+        LogCursor cursor = new LogCursor(new LogSegment[]{active}, new int[]{SEGMENT_SIZE},
+                lsn(active.segNo, LogSegment.HEADER_SIZE));
+
+        int xCheck = 0;  // 旧版本段的校验和
+        CRC32C crc = new CRC32C();
+        int tail = LogSegment.HEADER_SIZE;
+        while(cursor.next()){  // 读不出来说明已经到头或者到了坏尾
+            if(active.version == LogSegment.VERSION_SEED){
+                xCheck = cursor.checksumWholeLog(xCheck);
+            }else{
+                cursor.checksumWholeLog(crc);
             }
-            xCheck = calChecksum(xCheck, log);
-        }
-        if(xCheck != xChecksum){
-            Panic.panic(Error.BadLogFileException);
+            tail = (int) (cursor.nextPosition() - lsn(active.segNo, 0));  // 段正好写满时是 SEGMENT_SIZE，不能用 offset()
         }
 
+        // 坏尾之后可能还有没写完的一批日志留下的残片，全部清成 0，免得以后接着写的日志后面跟着看起来合法的旧日志
         try{
-            truncate(position);  // 这是截断损毁的部分 position作为全部变量在internNext调用的时候就在不断变化，最终会指向最后一个坏尾的开头，这里直接将它进行截断
+            ByteBuffer zero = ByteBuffer.allocateDirect(1 << 20);
+            for(long pos = tail; pos < SEGMENT_SIZE; pos += zero.capacity()){
+                zero.clear();
+                zero.limit((int) Math.min(zero.capacity(), SEGMENT_SIZE - pos));
+                while(zero.hasRemaining()){
+                    active.fc.write(zero, pos + zero.position());
+                }
+            }
+            active.fc.force(false);
         }catch (Exception e){
             Panic.panic(e);
         }
 
-        try{
-            file.seek(position); // 确保指针位于新的文件末尾，这是filechannel的指针，和position不是一个东西，这是将这个指针移到position的位置
-            // 将文件指针设置为从文件开头算起的指定字节位置
-            // RandomAccessFile和从RandomAccessFile得到的fileChannel的指针是共享的，没有延迟
-        }catch (Exception e){
-            Panic.panic(e);
+        setActive(active, tail, crc);
+        if(active.version != LogSegment.VERSION){
+            // 旧版本的活跃段不再往里写：按旧的算法封存，换到一个新版本的段
+            active.seal(tail, xCheck);
+            if(spare != null && spare.version != LogSegment.VERSION){
+                spare.delete();
+                spare = null;
+            }
+            LogSegment next = spare != null ? spare : LogSegment.create(dir, active.segNo + 1, SEGMENT_SIZE);
+            spare = null;
+            setActive(next, LogSegment.HEADER_SIZE, new CRC32C());
+        }else if(tail == SEGMENT_SIZE){
+            roll();  // 活跃段正好写满还没换段（以前的版本写满时不换段），和 flushBatch 一样先换掉
+            setActive(active, writePos, segCrc);
         }
+        rewind(); // 最终让 next() 从第一条日志开始读
+    }
 
-        rewind(); // 最终初始化文件头，就是position
+    private void setActive(LogSegment seg, int writePos, CRC32C segCrc){
+        lock.lock();
+        try{
+            segments.put(seg.segNo, seg);
+            active = seg;
+            this.writePos = writePos;
+            this.segCrc = segCrc;
+            tail = lsn(seg.segNo, writePos);
+            flushedLsn = tail;
+        }finally{
+            lock.unlock();
+        }
     }
 
     /**
-     * 从日志文件中读取下一条完整的日志记录（包括头部和数据），并做 校验和校验，如果无误则返回该日志内容（包含头部），否则返回 null。
-     * @return
+     * 把旧的单文件日志 [XChecksum] [Log1] ... [LogN] [BadTail] 里的日志追加到刚 create 好的段里
+     * 旧文件按原来的算法校验（每条日志的 Checksum 和整个文件的 XChecksum），写进段里时换成 CRC32C
      */
-    private byte[] internNext(){  // 这个的作用是返回当前的日志，同时移动position指向下一个日志的开头的位置（日志文件中有很多个log）
-        if(position + OF_DATA >= fileSize){
-            return null;
-        }
-        ByteBuffer tmp = ByteBuffer.allocate(4);
-        try{
-            fc.position(position);
-            fc.read(tmp);
+    void migrate(File legacy){
+        try(RandomAccessFile raf = new RandomAccessFile(legacy, "r"); FileChannel in = raf.getChannel()){
+            long size = in.size();
+            if(size < 4){
+                Panic.panic(Error.BadLogFileException);
+            }
+            ByteBuffer head = ByteBuffer.allocate(OF_DATA);
+            readFully(in, head.limit(4), 0);
+            int xChecksum = head.getInt(0);
+
+            int xCheck = 0;
+            long pos = 4;
+            List<byte[]> batch = new ArrayList<>();
+            while(pos + OF_DATA <= size){
+                head.clear();
+                readFully(in, head, pos);
+                int len = head.getInt(OF_SIZE);
+                if(len < 0 || pos + OF_DATA + len > size){
+                    break;
+                }
+                byte[] log = new byte[OF_DATA + len];
+                readFully(in, ByteBuffer.wrap(log), pos);
+                if(calChecksum(0, ByteBuffer.wrap(log), OF_DATA, log.length) != head.getInt(OF_CHECKSUM)){
+                    break;  // 坏尾
+                }
+                xCheck = calChecksum(xCheck, log);
+                batch.add(wrapLog(Arrays.copyOfRange(log, OF_DATA, log.length)));
+                if(batch.size() >= maxBatch){
+                    flushBatch(batch);
+                    batch = new ArrayList<>();
+                }
+                pos += log.length;
+            }
+            if(xCheck != xChecksum){
+                Panic.panic(Error.BadLogFileException);
+            }
+            if(!batch.isEmpty()){
+                flushBatch(batch);
+            }
         }catch (Exception e){
             Panic.panic(e);
         }
-
-        int size = Parser.parseInt(tmp.array());  // 这是从字节数组转整数的方法====明明可以直接int size = tmp.getInt();的
-        if(position + size + OF_SIZE > fileSize){
-            return null;
-        }
-        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size); // OF_DATA指的是data前面的size + checksum的偏移
+        lock.lock();
         try{
-            fc.position(position);
-            fc.read(buf); // 这读取的就是整个日志的数据了
-        }catch (Exception e){
-            Panic.panic(e);
+            tail = lsn(active.segNo, writePos);
+            flushedLsn = tail;
+        }finally{
+            lock.unlock();
         }
+    }
 
-        byte[] log = buf.array(); // 将这个日志的数据转成字节数组
-        int checksum1 = calChecksum(0, Arrays.copyOfRange(log,OF_DATA,log.length)); // 这是计算引入的这个log的校验和，同时记录为checksum1
-        int checksum2 = Parser.parseInt(Arrays.copyOfRange(log,OF_CHECKSUM,OF_DATA));  // 这是将引入的log日志的校验和提取出来
-        if(checksum1 != checksum2){
-            return null;  // 这里是检验传入的这个日志的校验和是否正确。如果不正确就返回null
+    private static void readFully(FileChannel fc, ByteBuffer buf, long pos) throws Exception {
+        while(buf.hasRemaining()){
+            if(fc.read(buf, pos + buf.position()) < 0){
+                Panic.panic(Error.BadLogFileException);
+            }
         }
-        position += log.length;  // 这里更新position到下一条日志开头的位置
-        return log; // 返回当前读取出来的日志，然后position指向下一条日志
     }
 
     /*
     字节数组：log = [104, 101, 108, 108, 111]，字节数组就是每个元素都是一个字节，而一个字节就是八位，因此一个字节代表的整数就是0-255的一个整数
      */
-    // 计算单个日志的校验和字段
+    // 计算单个日志的校验和字段（旧算法，只用来读旧版本的段和旧的单文件日志）
     private int calChecksum(int xCheck, byte[] log){
         // Checksum是单条日志的校验和, 这是对log中每一个字节进行计算累加，然后基于此生成这个日志的校验和
         for(byte b : log){
@@ -168,129 +313,342 @@ public class LoggerImpl implements Logger{
         return xCheck;
     }
 
+    // 和上面一样，只是直接在 buf 的 [from, to) 上算，给映射游标用，不用先拷贝出来
+    static int calChecksum(int xCheck, ByteBuffer buf, int from, int to){
+        for(int i = from; i < to; i++){
+            xCheck = xCheck * SEED + buf.get(i);
+        }
+        return xCheck;
+    }
+
+    /**
+     * buf 里 [from, to) 的 CRC32C，会改掉 buf 的 position/limit；crc 是调用方复用的对象
+     * 直接对 ByteBuffer 算，映射区上的数据不用先拷贝出来，CRC32C 一次处理多个字节，比上面逐字节的乘法累加快得多
+     */
+    static int crc32c(CRC32C crc, ByteBuffer buf, int from, int to){
+        crc.reset();
+        buf.clear();
+        buf.position(from).limit(to);
+        crc.update(buf);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * 日志从 lsn 开始放，段尾放不下就放到下一个段的开头
+     */
+    private static long place(long lsn, int len){
+        if(len > SEGMENT_SIZE - LogSegment.HEADER_SIZE){
+            Panic.panic(Error.DataTooLargeException);
+        }
+        if(offset(lsn) < LogSegment.HEADER_SIZE){  // 上一条日志正好写满了上一个段
+            return lsn(segNo(lsn), LogSegment.HEADER_SIZE);
+        }
+        if(offset(lsn) + len > SEGMENT_SIZE){
+            return lsn(segNo(lsn) + 1, LogSegment.HEADER_SIZE);
+        }
+        return lsn;
+    }
+
     /**
      * 将一条数据库操作日志（data）封装后追加写入日志文件，确保写前日志（WAL）机制生效。
+     * 日志进入组提交队列，返回时这条日志已经和同一批的其他日志一起落盘
      * @param data
+     * @return 这条日志的 LSN
      */
     @Override
-    public void log(byte[] data) {
+    public long log(byte[] data) {
         byte[] log = wrapLog(data);
-        ByteBuffer buf = ByteBuffer.wrap(log);
+        long lsn = 0;
+        boolean interrupted = false;
         lock.lock();
         try{
-            fc.position(fc.size());
-            fc.read(buf);
+            pending.add(log);
+            lsn = place(tail, log.length);  // 队列的顺序就是写进文件的顺序，flusher 也按同样的规则换段，所以入队时就能确定 LSN
+            tail = lsn + log.length;
+            long seq = ++appended;
+            if(pending.size() >= maxBatch){
+                batchFull.signal();
+            }
+            while(durable < seq){
+                if(flushing){
+                    flushed.awaitUninterruptibly();  // 别人正在刷，等这一批刷完再看自己的日志有没有落盘
+                    continue;
+                }
+                // 没有人在刷，自己来当 flusher，把队列里所有日志（包括别人的）一起刷掉
+                flushing = true;
+                long nanos = maxWaitNanos;
+                while(pending.size() < maxBatch && nanos > 0){
+                    try{
+                        nanos = batchFull.awaitNanos(nanos);
+                    }catch (InterruptedException e){
+                        // 攒批只是为了少 force 几次，被 interrupt 了就不攒了，手上这批照样刷下去
+                        interrupted = true;
+                        break;
+                    }
+                }
+                // 带着中断标记去写 FileChannel 会把通道关掉，写之前先清掉，返回前再设回去
+                interrupted |= Thread.interrupted();
+                List<byte[]> batch = pending;
+                long batchEnd = appended;
+                pending = new ArrayList<>();
+                lock.unlock();  // 写盘的时候不拿锁，别的线程可以继续往队列里放下一批
+                long end = 0;
+                try{
+                    end = flushBatch(batch);
+                }finally{
+                    lock.lock();
+                    durable = batchEnd;
+                    flushedLsn = end;
+                    flushing = false;
+                    flushed.signalAll();
+                }
+            }
+        }finally{
+            lock.unlock();
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+        return lsn;
+    }
+
+    /**
+     * 把一批日志追加到活跃段里，段写满了就封存换段，最后只 force 一次
+     * 同一时间只有一个 flusher，所以这里不用加锁
+     * @return 这一批写完后日志的结尾
+     */
+    private long flushBatch(List<byte[]> batch){
+        List<ByteBuffer> group = new ArrayList<>();
+        int start = writePos;
+        for(byte[] log : batch){
+            if(writePos + log.length > SEGMENT_SIZE){
+                write(group, start);
+                group.clear();
+                roll();
+                start = writePos;
+            }
+            group.add(ByteBuffer.wrap(log));
+            segCrc.update(log);  // 活跃段的校验和只在内存里累加，封存时才写进 Header
+            writePos += log.length;
+            if(writePos == SEGMENT_SIZE){
+                // 正好写满：马上换段，不然返回的结尾 lsn(active, SEGMENT_SIZE) 和下一个段的开头是同一个值，会被当成下一个段里的位置
+                write(group, start);
+                group.clear();
+                roll();
+                start = writePos;
+            }
+        }
+        write(group, start);
+        try{
+            active.fc.force(false); // 这是进行刷盘，一批只刷一次
         }catch (Exception e){
             Panic.panic(e);
+        }
+        return lsn(active.segNo, writePos);
+    }
+
+    // 用一次聚集写把 group 写到活跃段的 start 处
+    private void write(List<ByteBuffer> group, int start){
+        if(group.isEmpty()){
+            return;
+        }
+        ByteBuffer[] bufs = group.toArray(new ByteBuffer[0]);
+        try{
+            active.fc.position(start);
+            while(bufs[bufs.length - 1].hasRemaining()){
+                active.fc.write(bufs);
+            }
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 封存活跃段，换到备用段，再让后台线程预分配一个新的备用段
+     * 建文件、写 16MB 的 0、force 文件和目录都不在 flusher 里做，不然每写满一个段就有一批提交要跟着多等这些；
+     * 写满下一个段通常要比准备一个段久得多，换段时备用段一般早就准备好了，没准备好才等它
+     */
+    private void roll(){
+        active.seal(writePos, (int) segCrc.getValue());
+        LogSegment next;
+        lock.lock();
+        try{
+            while(preparing){
+                spareReady.awaitUninterruptibly();
+            }
+            next = spare;
+            spare = null;
         }finally{
             lock.unlock();
         }
-        updateXChecksum(log);
+        if(next == null){  // 只有打开时活跃段正好写满、还没有备用段时会走到这里
+            next = LogSegment.create(dir, active.segNo + 1, SEGMENT_SIZE);
+            syncDir();
+        }
+        lock.lock();
+        try{
+            segments.put(next.segNo, next);
+            active = next;
+            preparing = true;
+        }finally{
+            lock.unlock();
+        }
+        writePos = LogSegment.HEADER_SIZE;
+        segCrc.reset();
+        prepareSpare(next.segNo + 1);
     }
 
-    private void updateXChecksum(byte[] log){  // 这是加入一个新的日志，然后更新整个日志文件的校验和
-        this.xChecksum = calChecksum(this.xChecksum, log);
-        try{
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
-            fc.force(false); // 这是进行刷盘
+    // 在后台预分配第 segNo 个段当备用段，落盘后交给下一次换段
+    private void prepareSpare(long segNo){
+        Thread preparer = new Thread(() -> {
+            LogSegment seg = LogSegment.create(dir, segNo, SEGMENT_SIZE);
+            syncDir();
+            lock.lock();
+            try{
+                spare = seg;
+                preparing = false;
+                spareReady.signalAll();
+            }finally{
+                lock.unlock();
+            }
+        }, "log-segment-preparer");
+        preparer.setDaemon(true);
+        preparer.start();
+    }
+
+    // 目录里新建、删除了文件，目录本身也要落盘
+    private void syncDir(){
+        try(FileChannel d = FileChannel.open(dir.toPath(), StandardOpenOption.READ)){
+            d.force(true);
         }catch (Exception e){
             Panic.panic(e);
         }
     }
 
-    // wrapLog 是用来组合size、checksum以及data字段，最终返回的就是一个完整的日志数据（字节数组）
-    // 构造“日志记录结构”
-    private byte[] wrapLog(byte[] data){
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));  // 这是计算日志文件的校验和
-        byte[] size = Parser.int2Byte(data.length); // 数据长度字段
-        return Bytes.concat(size, checksum, data);  // 这就是单个日志的结构
+    @Override
+    public void setGroupCommit(int maxBatch, long maxWaitMicros) {
+        lock.lock();
+        try{
+            this.maxBatch = Math.max(1, maxBatch);
+            this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, maxWaitMicros));
+        }finally{
+            lock.unlock();
+        }
     }
 
     @Override
-    public void truncate(long x) throws Exception {  // truncate 截断的意思
+    public long endLsn() {
         lock.lock();
         try{
-            fc.truncate(x);  // 如果长度小于x就扩展到x，多的空间补0，如果长度大于x就截断到x
-        }finally {
+            return tail;
+        }finally{
             lock.unlock();
         }
     }
 
-//    /**
-//     * 从日志文件中读取下一条完整的日志记录（包括头部和数据），并做 校验和校验，如果无误则返回该日志内容（包含头部），否则返回 null。
-//     * @return
-//     */
-//    private byte[] internNext(){
-//        if(position + OF_DATA >= fileSize){
-//            return null;  // 这说明以及没有多余的数据了
-//        }
-//        ByteBuffer tmp = ByteBuffer.allocate(4);
-//        try{
-//            fc.position(position);
-//            fc.read(tmp);
-//        }catch (Exception e){
-//            Panic.panic(e);
-//        }
-//
-//        int size = Parser.parseInt(tmp.array());
-//
-//        if(position + size + OF_SIZE > fileSize){
-//            return null;
-//        }
-//
-//        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);  // 这是一条日志的大小
-//        try{
-//            fc.position(position);
-//            fc.read(buf);
-//        }catch (Exception e){
-//            Panic.panic(e);
-//        }
-//
-//        byte[] log = buf.array();
-//        int checkSum1 = calChecksum(0,Arrays.copyOfRange(log,OF_DATA,log.length));
-//        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log,OF_CHECKSUM,OF_DATA));
-//        if(checkSum1 != checkSum2){
-//            return null;
-//        }
-//        position += log.length;
-//        return log;
-//
-//    }
+    /**
+     * 删掉所有整段都在 lsn 之前的段（lsn 所在的段和之后的段都留着）
+     * 活跃段一定不会被删（lsn 超过了活跃段也只删到它前面），所以不用和 flusher 协调
+     */
+    @Override
+    public void truncateBefore(long lsn) {
+        List<LogSegment> dead = new ArrayList<>();
+        lock.lock();
+        try{
+            Map<Long, LogSegment> head = segments.headMap(Math.min(segNo(lsn), active.segNo));
+            dead.addAll(head.values());
+            head.clear();
+            if(!dead.isEmpty()){
+                reader = null;
+            }
+        }finally{
+            lock.unlock();
+        }
+        if(dead.isEmpty()){
+            return;
+        }
+        for(LogSegment seg : dead){
+            seg.delete();
+        }
+        syncDir();
+    }
+
+    // wrapLog 是用来组合size、checksum以及data字段，最终返回的就是一个完整的日志数据（字节数组）
+    // 构造“日志记录结构”
+    private byte[] wrapLog(byte[] data){
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        byte[] checksum = Parser.int2Byte((int) crc.getValue());  // 这是计算单条日志的校验和
+        byte[] size = Parser.int2Byte(data.length); // 数据长度字段
+        return Bytes.concat(size, checksum, data);  // 这就是单个日志的结构
+    }
 
     /**
      * 从日志文件中读取下一条合法的日志记录内容（去掉封装头），用于恢复或重放。
+     * 需要大量扫描的地方（比如恢复）直接用 cursor()，不用每条都拷贝一份
      * @return
      */
     @Override
     public byte[] next() {
         lock.lock();
         try{
-            byte[] log = internNext();  // interNext()就是读取日志内容，然后校验是否正确，返回该日志内容同时position移到下一条日志
-            if(log == null){
+            if(reader == null){
+                rewind();
+            }
+            if(!reader.next()){  // 读取日志内容，然后校验是否正确，同时游标移到下一条日志
                 return null;
             }
-            return Arrays.copyOfRange(log,OF_DATA,log.length);  // 这里是只返回日志数据
+            ByteBuffer data = reader.data();
+            byte[] log = new byte[data.remaining()];
+            data.get(data.position(), log, 0, log.length);  // 这里是只返回日志数据
+            return log;
         }finally {
             lock.unlock();
         }
     }
 
     @Override
-    public void rewind() {  // rewind表示倒带，就是恢复position的最初位置
-        position = 4;  // 整个日志文件的开头是有4个字节的Xchecksum的，因此要偏移四个字节，后面就都是日志数据了
+    public void rewind() {  // rewind表示倒带，就是恢复到第一条日志的位置
+        reader = cursor();
+    }
+
+    /**
+     * 从最早的段开始的游标，只能读到已经落盘的日志
+     */
+    @Override
+    public LogCursor cursor() {
+        lock.lock();
+        try{
+            LogSegment[] segs = segments.values().toArray(new LogSegment[0]);
+            int[] limits = new int[segs.length];
+            for(int i = 0; i < segs.length; i++){
+                if(segs[i].isSealed()){
+                    limits[i] = segs[i].end;
+                }else{
+                    limits[i] = segs[i].segNo == segNo(flushedLsn) ? offset(flushedLsn) : LogSegment.HEADER_SIZE;
+                }
+            }
+            return new LogCursor(segs, limits, lsn(segs[0].segNo, LogSegment.HEADER_SIZE));
+        }finally{
+            lock.unlock();
+        }
     }
 
     @Override
     public void close() {
+        lock.lock();
         try{
-            /*
-            先关闭上层的filechannel，再关闭底层的RandomAccessFile，才是安全的,fileChannel是通过RandomAccessFile.getChannel获得的
-             */
-            fc.close();
-            file.close();
-        }catch (Exception e){
-            Panic.panic(e);
+            while(preparing){  // 等后台把备用段准备完，不然它会在关掉之后才打开文件
+                spareReady.awaitUninterruptibly();
+            }
+            for(LogSegment seg : segments.values()){
+                seg.close();
+            }
+            if(spare != null){
+                spare.close();
+            }
+        }finally{
+            lock.unlock();
         }
     }
 }
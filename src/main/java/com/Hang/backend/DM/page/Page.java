@@ -1,5 +1,7 @@
 package com.Hang.backend.DM.page;
 
+import java.nio.ByteBuffer;
+
 /**
  * 页面的接口指的是定义页面的一些基本属性（方法），包含加锁，脏数据属性，页码以及具体数据
  */
@@ -10,5 +12,23 @@ public interface Page {
     void setDirty(boolean dirty);
     boolean isDirty();
     int getPageNumber();
-    byte[] getData();
+
+    /**
+     * 页所在的帧（缓存里的页是页帧池里的一整块堆外 slab），这页的数据是 [getOffset(), getOffset() + getSize()) 这一段，
+     * 读写页内的数据都要加上 getOffset()，而且只能用绝对下标的 get/put，不能动 position（别的页也在同一块 slab 上）
+     */
+    ByteBuffer getData();
+    int getOffset();
+    int getSize();  // 页大小，建库时定的，见 PageCache.getPageSize()
+    boolean isLegacy();  // 是不是升级前留下来的老格式（追加格式）的页，见 PageX
+
+    /**
+     * 先改页、后写日志的修改（DataItem 的 before() 到 after()/unBefore()）期间，这页不能写回磁盘，
+     * 否则崩溃后磁盘上会有一个找不到日志来撤销的修改。开始修改前调用 beginUnlogged()，日志写完后调用 endUnlogged()
+     * 一定要写回的时候，调用方持有 lock()，用 awaitLogged() 等到这些修改的日志都写完（等的时候放开页锁）
+     */
+    void beginUnlogged();
+    void endUnlogged();
+    boolean hasUnlogged();
+    void awaitLogged();
 }
@@ -2,22 +2,39 @@ package com.Hang.backend.DM.page;
 
 import com.Hang.backend.DM.pageCache.PageCache;
 
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class PageImpl implements Page{
     private int pageNumber; // 页面的页号，从1开始计数
-    private byte[] data; // 这个页实际包含的字节数据
-    private boolean dirty; // 标志页面是否是脏页面，在缓存驱逐时，脏页面需要被写回磁盘。
+    private ByteBuffer data; // 这个页所在的帧，页的数据从 offset 开始
+    private int offset;
+    private int size;
+    private int frame;  // 页帧池里的帧号，驱逐时还回去；不是从池里拿的为 -1
+    private volatile boolean dirty; // 标志页面是否是脏页面，在缓存驱逐时，脏页面需要被写回磁盘。检查点线程也会读写它
     private Lock lock;
+    private final AtomicInteger unlogged = new AtomicInteger(0);  // 正在进行的先改页后写日志的修改个数
+    private Condition logged;  // unlogged 降到 0 时唤醒 awaitLogged()
 
     private PageCache pc;
 
-    public PageImpl(int pageNumber, byte[] data, PageCache pc) {
+    public PageImpl(int pageNumber, ByteBuffer data, PageCache pc) {
+        this(pageNumber, data, 0, data.capacity(), -1, pc);
+    }
+
+    public PageImpl(int pageNumber, ByteBuffer data, int offset, int size, int frame, PageCache pc) {
         this.pageNumber = pageNumber;
         this.data = data;
+        this.offset = offset;
+        this.size = size;
+        this.frame = frame;
         this.pc = pc;
         lock = new ReentrantLock();
+        logged = lock.newCondition();
     }
     @Override
     public void lock() {
@@ -50,7 +67,60 @@ public class PageImpl implements Page{
     }
 
     @Override
-    public byte[] getData() {
+    public ByteBuffer getData() {
         return data;
     }
+
+    @Override
+    public int getOffset() {
+        return offset;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public boolean isLegacy() {
+        return pc != null && pc.isLegacy(pageNumber);
+    }
+
+    public int getFrame() {
+        return frame;
+    }
+
+    @Override
+    public void beginUnlogged() {
+        lock.lock();  // 和写回时的快照互斥，快照要么在修改开始之前拷，要么看到 unlogged > 0 跳过
+        try{
+            unlogged.incrementAndGet();
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void endUnlogged() {
+        if(unlogged.decrementAndGet() == 0){
+            lock.lock();  // 只有降到 0 时才拿页锁去唤醒，等的人拿着页锁检查 unlogged，不会漏掉
+            try{
+                logged.signalAll();
+            }finally{
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public boolean hasUnlogged() {
+        return unlogged.get() > 0;
+    }
+
+    @Override
+    public void awaitLogged() {
+        while(unlogged.get() > 0){
+            logged.awaitUninterruptibly();
+        }
+    }
 }
@@ -1,8 +1,10 @@
 package com.Hang.backend.DM.page;
 
 import com.Hang.backend.DM.pageCache.PageCache;
+import com.Hang.backend.utils.Parser;
 import com.Hang.backend.utils.RandomUtil;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -14,47 +16,120 @@ import java.util.Arrays;
  * 数据库文件的第一页，通常用作一些特殊用途，比如存储一些元数据，用来启动检查什么的。MYDB 的第一页，只是用来做启动检查。
  * 具体的原理是，在每次数据库启动时，会生成一串随机字节，存储在 100 ~ 107 字节。
  * 在数据库正常关闭时，会将这串字节，拷贝到第一页的 108 ~ 115 字节。
+ *
+ * 文件头
+ * 第一页开头的 [Magic][PageSize][Format][LegacyPages] 记录文件格式：Magic 4 字节，PageSize 4 字节是建库时定的页大小，
+ * Format 4 字节是普通页的格式版本，LegacyPages 4 字节是升级前就有的页数（这些页还是老的追加格式，见 PageX）。
+ * 打开文件时 PageCache 要先知道页大小才能按页读，所以直接读文件开头的 HEADER_SIZE 字节交给 parsePageSize 解析。
+ * 加文件头之前建的库这里全是 0，没有 Magic 就当作 8KB 的页。
+ * 普通页换成分槽页（见 PageX）之前的文件（没有 Magic，或者 Format 是 0）打开时由 DataManager 升级：
+ * 补上文件头，Format 改成分槽页，LegacyPages 记下当时的页数，之后新建的页都是分槽页
  */
 public class PageOne {
+    private static final int OF_MAGIC = 0;
+    private static final int OF_PAGE_SIZE = 4;
+    private static final int OF_FORMAT = 8;
+    private static final int OF_LEGACY_PAGES = 12;
+    public static final int HEADER_SIZE = 8;  // 解析页大小只要前 8 个字节
+    private static final int MAGIC = 0x514B4442;  // "QKDB"
+    private static final int FORMAT_APPEND = 0;  // 普通页是追加格式（分槽页之前的文件）
+    private static final int FORMAT_SLOTTED = 1;  // 普通页是分槽页
+
     private static final int OF_VC = 100;  // 这是版本控制前面的100个字节的偏移量
     private static final int LEN_VC = 8;  // 版本控制的长度
 
-    public static byte[] InitRaw(){
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setVcOpen(raw);  // 启动时设置初始字节
+    public static byte[] InitRaw(int pageSize){
+        byte[] raw = new byte[pageSize];
+        System.arraycopy(Parser.int2Byte(MAGIC), 0, raw, OF_MAGIC, 4);
+        System.arraycopy(Parser.int2Byte(pageSize), 0, raw, OF_PAGE_SIZE, 4);
+        System.arraycopy(Parser.int2Byte(FORMAT_SLOTTED), 0, raw, OF_FORMAT, 4);
+        setVcOpen(ByteBuffer.wrap(raw), 0);  // 启动时设置初始字节
         return raw;
     }
 
+    /**
+     * 从文件开头的 HEADER_SIZE 字节里解析出页大小
+     */
+    public static int parsePageSize(byte[] header){
+        if(Parser.parseInt(Arrays.copyOfRange(header, OF_MAGIC, OF_MAGIC+4)) != MAGIC){
+            return PageCache.DEFAULT_PAGE_SIZE;
+        }
+        return Parser.parseInt(Arrays.copyOfRange(header, OF_PAGE_SIZE, OF_PAGE_SIZE+4));
+    }
+
+    /**
+     * 文件是不是当前的格式（有 Magic，普通页是分槽页）
+     */
+    public static boolean checkFormat(Page pg){
+        return hasMagic(pg) && getInt(pg, OF_FORMAT) == FORMAT_SLOTTED;
+    }
+
+    /**
+     * 是不是分槽页之前的文件，要升级（见 upgrade）
+     */
+    public static boolean isAppendFormat(Page pg){
+        return !hasMagic(pg) || getInt(pg, OF_FORMAT) == FORMAT_APPEND;
+    }
+
+    /**
+     * 升级到分槽页：补上文件头，记下 legacyPages；之前的页都是追加格式，原样保留
+     */
+    public static void upgrade(Page pg, int legacyPages){
+        pg.setDirty(true);
+        ByteBuffer raw = pg.getData();
+        int base = pg.getOffset();
+        raw.putInt(base+OF_MAGIC, MAGIC);
+        raw.putInt(base+OF_PAGE_SIZE, pg.getSize());
+        raw.putInt(base+OF_FORMAT, FORMAT_SLOTTED);
+        raw.putInt(base+OF_LEGACY_PAGES, legacyPages);
+    }
+
+    /**
+     * 升级前就有的页数，第 2 到第 legacyPages 页是追加格式；新建的库是 0
+     */
+    public static int getLegacyPages(Page pg){
+        return getInt(pg, OF_LEGACY_PAGES);
+    }
+
+    private static boolean hasMagic(Page pg){
+        return getInt(pg, OF_MAGIC) == MAGIC;
+    }
+
+    private static int getInt(Page pg, int of){
+        return pg.getData().getInt(pg.getOffset() + of);
+    }
+
     public static void setVcOpen(Page pg){
         pg.setDirty(true);
-        setVcOpen(pg.getData());
+        setVcOpen(pg.getData(), pg.getOffset());
     }
 
-    private static void setVcOpen(byte[] raw){  // 方法重载
-        // System.arraycopy(src, srcPos, dest, destPos, length)
+    // base 是页在 raw 里的起始下标（Page.getOffset()）
+    private static void setVcOpen(ByteBuffer raw, int base){  // 方法重载
         // RandomUtil.randomBytes(LEN_VC)生成一个长度为 LEN_VC 的随机字节数组
-        System.arraycopy(RandomUtil.randomBytes(LEN_VC), 0, raw, OF_VC, LEN_VC);
+        raw.put(base+OF_VC, RandomUtil.randomBytes(LEN_VC));
     }
 
     public static void setVcClose(Page pg){
         pg.setDirty(true);
-        setVcClose(pg.getData());
+        setVcClose(pg.getData(), pg.getOffset());
     }
 
-    private static void setVcClose(byte[] raw){
-        System.arraycopy(raw, OF_VC, raw, OF_VC+LEN_VC, LEN_VC);
+    private static void setVcClose(ByteBuffer raw, int base){
+        raw.put(base+OF_VC+LEN_VC, raw, base+OF_VC, LEN_VC);
     }
 
     /*
     校验字节
      */
     public static boolean checkVc(Page pg){
-        return checkVc(pg.getData());
+        return checkVc(pg.getData(), pg.getOffset());
     }
 
-    private static boolean checkVc(byte[] raw){
+    private static boolean checkVc(ByteBuffer raw, int base){
         // 就是对比100 ~ 107 字节和108 ~ 115 字节是否相等来判断上次是否是正常关闭
-        return Arrays.equals(Arrays.copyOfRange(raw, OF_VC, OF_VC+LEN_VC),Arrays.copyOfRange(raw, OF_VC+LEN_VC, OF_VC+2*LEN_VC));
+        int from = base+OF_VC;
+        return raw.slice(from, LEN_VC).equals(raw.slice(from+LEN_VC, LEN_VC));
     }
 
 
@@ -1,76 +1,329 @@
 package com.Hang.backend.DM.page;
 
 
-import com.Hang.backend.DM.pageCache.PageCache;
-import com.Hang.backend.utils.Parser;
+import com.Hang.backend.DM.Reclaimer;
+import com.Hang.backend.DM.dataItem.DataItem;
+import com.Hang.backend.utils.Panic;
+import com.Hang.common.Error;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * PageX管理普通页
- * 普通页结构
- * [FreeSpaceOffset] [Data]
- * FreeSpaceOffset: 2字节 空闲位置开始偏移
+ * 普通页结构（分槽页）
+ * [SlotCount]2 [RecordStart]2 [Slot]2 [Slot]2 ... 空闲空间 ... [Record] [Record] ...
+ * SlotCount: 槽的个数
+ * RecordStart: 记录区的起始偏移，记录从页尾往前放，槽目录从页头往后长，中间就是连续的空闲空间
+ * Slot: 这个槽的记录（一个 DataItem）在页内的偏移，DEAD 表示这条记录已经被回收了
+ *
+ * UID 的低 16 位是槽号而不是偏移，记录在页内挪动（压缩）时只改槽里的偏移，UID 不变。
+ * 槽号不会重复使用，回收掉的槽永远是 DEAD，索引里残留的旧 UID 不会指到别的记录上，读出来就是无效的
+ *
+ * 压缩：无效的 DataItem（比如恢复时撤销的插入）占着的空间，由 compact 把它们的槽标成 DEAD，
+ * 再把剩下的记录挪到一起，空出来的空间并回中间的空闲空间。压缩由 DataManager 在插入时按需发起，并写一条日志
  *
- * MYDB 对于普通数据页的管理就比较简单了。一个普通页面以一个 2 字节无符号数起始，表示这一页的空闲位置的偏移。剩下的部分都是实际存储的数据。
+ * 页内偏移都是 2 字节的无符号数，最大只能到 MAX_END（65535），所以 64KB 的页最后一个字节用不上
+ *
+ * 老格式的页（Page.isLegacy()）：
+ * 分槽页之前的普通页是追加格式 [FreeSpaceOffset]2 [DataItem] [DataItem] ...，UID 的低 16 位是记录在页内的偏移。
+ * 这些 UID 存在 B+ 树的节点和表的记录里，DM 改不了它们，所以老文件升级时不重排这些页（见 DataManagerImpl.upgradePageOne），
+ * 而是原样留着：getSlot 把槽号直接当偏移用，读、原地修改和恢复都照旧，只是不再往这些页里插入（空闲空间当作 0），也不压缩
  */
 public class PageX {
-    // 一个普通页面以一个 2 字节无符号数起始，表示这一页的空闲位置的偏移。剩下的部分都是实际存储的数据。
-    private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
+    private static final int OF_SLOT_COUNT = 0;
+    private static final int OF_RECORD_START = 2;
+    private static final int OF_SLOTS = 4;
+    private static final int SLOT_SIZE = 2;
+    private static final int MAX_END = 0xFFFF;
+    public static final int DEAD = 0;  // 偏移 0 是页头，不会是一条记录
+    private static final int LEGACY_OF_DATA = 2;  // 老格式的页，数据从 FreeSpaceOffset 后面开始
 
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
+    // 一页最多能放多少数据，也是一个空页的空闲空间（算上它要用的那个槽）
+    public static int maxFreeSpace(int pageSize){
+        return end(pageSize) - OF_SLOTS - SLOT_SIZE;
+    }
 
-    public static byte[] initRaw(){
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setFSO(raw,OF_DATA);
+    // 记录区的末尾
+    private static int end(int pageSize){
+        return Math.min(pageSize, MAX_END);
+    }
+
+    public static byte[] initRaw(int pageSize){
+        byte[] raw = new byte[pageSize];
+        ByteBuffer buf = ByteBuffer.wrap(raw);
+        setU16(buf, OF_SLOT_COUNT, 0);
+        setU16(buf, OF_RECORD_START, end(pageSize));
         return raw;
     }
-    // 所以对普通页的管理，基本都是围绕着对 FSO（Free Space Offset）进行的
-    // FSO就是空闲空间偏移，FSO 用于记录已用空间和剩余空间的分界点----普通页前两个字节记录的数据就是这个FSO的位置
-    private static void setFSO(byte[] raw, short ofData){
-        System.arraycopy(Parser.short2Byte(ofData),0,raw,OF_FREE,OF_DATA);
+
+    // base 是页在 raw 里的起始下标（Page.getOffset()），页内的偏移都是相对 base 的
+    private static int getU16(ByteBuffer raw, int pos){
+        return raw.getShort(pos) & 0xFFFF;
+    }
+
+    private static void setU16(ByteBuffer raw, int pos, int v){
+        raw.putShort(pos, (short) v);
+    }
+
+    private static int slotCount(Page pg){
+        return getU16(pg.getData(), pg.getOffset() + OF_SLOT_COUNT);
+    }
+
+    private static int recordStart(Page pg){
+        return getU16(pg.getData(), pg.getOffset() + OF_RECORD_START);
+    }
+
+    private static void setSlot(Page pg, int slot, int offset){
+        setU16(pg.getData(), pg.getOffset() + OF_SLOTS + slot * SLOT_SIZE, offset);
+    }
+
+    /**
+     * 第 slot 个槽的记录在页内的偏移，槽不存在或者已经回收了返回 DEAD
+     */
+    public static int getSlot(Page pg, int slot){
+        if(pg.isLegacy()){
+            return slot >= LEGACY_OF_DATA && slot < legacyFSO(pg) ? slot : DEAD;  // 老格式的 UID 里记的就是偏移
+        }
+        if(slot >= slotCount(pg)){
+            return DEAD;
+        }
+        return getU16(pg.getData(), pg.getOffset() + OF_SLOTS + slot * SLOT_SIZE);
     }
 
-    // 获取pg的FSO---FSO就是前两个字节，表示的是空闲空间的偏移----这个空闲空间偏移其实也代表了已经占据的空间的大小
-    public static short getFSO(Page pg){
-        return getFSO(pg.getData());
+    /**
+     * 下一次 insert 会用的槽号，插入前写日志用
+     */
+    public static int nextSlot(Page pg){
+        return slotCount(pg);
     }
 
-    private static short getFSO(byte[] raw) {
-        return Parser.parseShort(raw);  // short本身就只占两个字节，所以这里只会解析前面两个字节
+    // 槽目录和记录区之间的连续空闲空间
+    private static int gap(Page pg){
+        return recordStart(pg) - (OF_SLOTS + slotCount(pg) * SLOT_SIZE);
     }
 
-    // 将raw插入pg中，返回插入位置
-    public static short insert(Page pg, byte[] raw){  // raw只是实际数据而已
+    // 将raw插入pg中，返回它的槽号；调用方先用 getFreeSpace 确认放得下
+    public static int insert(Page pg, byte[] raw){  // raw只是实际数据而已
         pg.setDirty(true);  // 修改磁盘中的数据，没刷入到磁盘，这个数据页就一直都是脏数据，而刷盘的时候也就是这个资源没有被引用的时候
-        short offset = getFSO(pg.getData());
-        System.arraycopy(raw,0,pg.getData(),offset,raw.length);
-        setFSO(pg.getData(), (short) (offset+raw.length));
-        return offset;
+        ByteBuffer data = pg.getData();
+        int base = pg.getOffset();
+        int slot = slotCount(pg);
+        int offset = recordStart(pg) - raw.length;
+        data.put(base + offset, raw);
+        setSlot(pg, slot, offset);
+        setU16(data, base + OF_SLOT_COUNT, slot + 1);
+        setU16(data, base + OF_RECORD_START, offset);
+        return slot;
+    }
+
+    /**
+     * 从 raws[from] 开始，不压缩的话这页还能连续放下几条（每条还要一个槽）
+     */
+    public static int fits(Page pg, byte[][] raws, int from){
+        int free = getFreeSpace(pg);
+        int i = from;
+        while(i < raws.length && raws[i].length <= free){
+            free -= raws[i].length + SLOT_SIZE;
+            i++;
+        }
+        return i - from;
+    }
+
+    // 老格式的页的 FreeSpaceOffset，和 SlotCount 在同一个位置
+    private static int legacyFSO(Page pg){
+        return slotCount(pg);
+    }
+
+    // newPage 只写不 force，崩溃后新建的页可能读出来全是 0（RecordStart 为 0），把它当成一个空页重新初始化
+    public static void initIfBlank(Page pg){
+        if(pg.isLegacy()){
+            return;
+        }
+        if(recordStart(pg) < OF_SLOTS){
+            pg.setDirty(true);
+            setU16(pg.getData(), pg.getOffset() + OF_SLOT_COUNT, 0);
+            setU16(pg.getData(), pg.getOffset() + OF_RECORD_START, end(pg.getSize()));
+        }
     }
 
-    // 获取页面的空闲空间大小
+    // 获取页面的空闲空间大小：不压缩的话还能插入多大的一条记录（扣掉它要用的槽）
     public static int getFreeSpace(Page pg){
-        return PageCache.PAGE_SIZE - (int)getFSO(pg.getData());
+        if(pg.isLegacy()){
+            return 0;
+        }
+        return Math.max(0, gap(pg) - SLOT_SIZE);
+    }
+
+    /**
+     * 无效记录和死掉的版本占着的空间，压缩以后能回收。reclaimer 为 null 时只算无效记录
+     */
+    public static int getGarbage(Page pg, Reclaimer reclaimer){
+        if(pg.isLegacy()){
+            return 0;
+        }
+        ByteBuffer data = pg.getData();
+        int base = pg.getOffset();
+        long horizon = reclaimer == null ? 0 : reclaimer.horizon();
+        int garbage = 0;
+        for(int i = slotCount(pg) - 1; i >= 0; i--){
+            int offset = getSlot(pg, i);
+            if(offset != DEAD && isGarbage(data, base + offset, reclaimer, horizon)){
+                garbage += DataItem.rawLength(data, base + offset);
+            }
+        }
+        return garbage;
+    }
+
+    /**
+     * 记录无效或者版本已经死了的槽，压缩时要回收的就是它们
+     */
+    public static int[] invalidSlots(Page pg, Reclaimer reclaimer){
+        if(pg.isLegacy()){
+            return new int[0];
+        }
+        ByteBuffer data = pg.getData();
+        int base = pg.getOffset();
+        long horizon = reclaimer == null ? 0 : reclaimer.horizon();
+        int n = slotCount(pg);
+        int[] res = new int[n];
+        int size = 0;
+        for(int i = 0; i < n; i++){
+            int offset = getSlot(pg, i);
+            if(offset != DEAD && isGarbage(data, base + offset, reclaimer, horizon)){
+                res[size++] = i;
+            }
+        }
+        return Arrays.copyOf(res, size);
+    }
+
+    private static boolean isGarbage(ByteBuffer data, int offset, Reclaimer reclaimer, long horizon){
+        if(!DataItem.isRawValid(data, offset)){
+            return true;
+        }
+        return reclaimer != null && DataItem.isRawDead(data, offset, reclaimer, horizon);
+    }
+
+    /**
+     * 压缩：先把 kill 里的槽标成 DEAD（槽还不存在的话先补出来），再把剩下的记录按槽号顺序从页尾往前重新排紧。
+     * 记录会在页内挪动，调用方要保证没有人拿着指向这页数据的 DataItem（见 DataManagerImpl）
+     */
+    public static void compact(Page pg, int[] kill){
+        pg.setDirty(true);
+        ByteBuffer data = pg.getData();
+        int base = pg.getOffset();
+        for(int slot : kill){
+            ensureSlots(pg, slot + 1);
+            setSlot(pg, slot, DEAD);
+        }
+        int start = recordStart(pg);
+        int end = end(pg.getSize());
+        byte[] old = new byte[end - start];  // 原来的记录区，从这里拷回去
+        data.get(base + start, old);
+        int offset = end;
+        for(int i = 0, n = slotCount(pg); i < n; i++){
+            int from = getSlot(pg, i);
+            if(from == DEAD){
+                continue;
+            }
+            int length = DataItem.rawLength(old, from - start);
+            offset -= length;
+            data.put(base + offset, old, from - start, length);
+            setSlot(pg, i, offset);
+        }
+        setU16(data, base + OF_RECORD_START, offset);
+    }
+
+    // 槽目录补到 count 个槽，补出来的都是 DEAD；空间不够就先把已经回收的空间并回来
+    private static void ensureSlots(Page pg, int count){
+        int n = slotCount(pg);
+        if(count <= n){
+            return;
+        }
+        ensureGap(pg, (count - n) * SLOT_SIZE);
+        for(int i = n; i < count; i++){
+            setSlot(pg, i, DEAD);
+        }
+        setU16(pg.getData(), pg.getOffset() + OF_SLOT_COUNT, count);
+    }
+
+    private static void ensureGap(Page pg, int need){
+        if(gap(pg) < need){
+            compact(pg, new int[0]);
+        }
+        if(gap(pg) < need){
+            Panic.panic(Error.PageOverflowException);
+        }
     }
 
     /*
     recoverInsert() 和 recoverUpdate() 用于在数据库崩溃后重新打开时，恢复例程直接插入数据以及修改数据使用
     这两个数据库崩溃的时候用的，就是数据库崩了，但是现在还有缓存中的数据没写到数据库，导致数据不一致，
     因此需要将缓存中commited或者aborted的事务重写，同时将正在进行active的事务进行撤销
+
+    日志里记的是槽号，记录在哪个偏移由页自己决定，所以不管磁盘上的页是压缩前的还是压缩后的都能正确地重做
+    老格式的页上的日志（升级前写的，或者升级后对老记录的原地修改）记的是偏移，按原来追加格式的做法重做、撤销
      */
-    // 将raw插入pg的offset位置，并将pg的offset设置为较大的offset
-    public static void recoverInsert(Page pg, byte[] raw, short offset){
+    // 将raw插入pg的slot槽：槽已经有记录就原地覆盖（长度一样），槽已经回收了就跳过，槽还不存在就在空闲空间里放一条
+    // raw 是 buf 上 [from, from+length) 这一段，恢复时直接从映射的日志上拷进页里，不用先拷出来
+    public static void recoverInsert(Page pg, ByteBuffer buf, int from, int length, int slot){
+        pg.setDirty(true);
+        if(pg.isLegacy()){
+            pg.getData().put(pg.getOffset()+slot, buf, from, length);
+            if(legacyFSO(pg) < slot + length){
+                setU16(pg.getData(), pg.getOffset() + OF_SLOT_COUNT, slot + length);
+            }
+            return;
+        }
+        if(slot < slotCount(pg)){
+            int offset = getSlot(pg, slot);
+            if(offset != DEAD){
+                pg.getData().put(pg.getOffset()+offset, buf, from, length);
+            }
+            return;
+        }
+        ensureGap(pg, length + (slot + 1 - slotCount(pg)) * SLOT_SIZE);
+        ensureSlots(pg, slot + 1);
+        int offset = recordStart(pg) - length;
+        pg.getData().put(pg.getOffset()+offset, buf, from, length);
+        setSlot(pg, slot, offset);
+        setU16(pg.getData(), pg.getOffset() + OF_RECORD_START, offset);
+    }
+
+    // 将raw写到pg中slot槽的记录上，槽已经回收了就跳过
+    public static void recoverUpdate(Page pg, ByteBuffer buf, int from, int length, int slot){
         pg.setDirty(true);
-        System.arraycopy(raw,0,pg.getData(),offset,raw.length);
-        short rawFSO = getFSO(pg.getData());
-        if(rawFSO < offset + raw.length){
-            setFSO(pg.getData(), (short) (offset+raw.length));
+        int offset = pg.isLegacy() ? slot : getSlot(pg, slot);  // 老格式的页上更新的一定是已经在页里的记录
+        if(offset != DEAD){
+            pg.getData().put(pg.getOffset()+offset, buf, from, length);
         }
     }
 
-    // 将raw插入pg中的offset位置，不更新update===就是不更新FSO
-    public static void recoverUpdate(Page pg, byte[] raw, short offset){
+    // 撤销插入：把slot槽的记录标成无效；槽还不存在（插入没写到磁盘上）就直接补一个 DEAD 的槽
+    public static void recoverInvalidate(Page pg, int slot){
         pg.setDirty(true);
-        System.arraycopy(raw,0,pg.getData(),offset,raw.length);
+        if(pg.isLegacy()){
+            if(slot < legacyFSO(pg)){  // 插入没写到磁盘上的话，读的时候偏移超过 FreeSpaceOffset，本来就是无效的
+                DataItem.setDataItemRawInvalid(pg.getData(), pg.getOffset() + slot);
+            }
+            return;
+        }
+        if(slot >= slotCount(pg)){
+            ensureSlots(pg, slot + 1);
+            return;
+        }
+        int offset = getSlot(pg, slot);
+        if(offset != DEAD){
+            DataItem.setDataItemRawInvalid(pg.getData(), pg.getOffset() + offset);
+        }
+    }
+
+    // 重做压缩日志
+    public static void recoverCompact(Page pg, ByteBuffer buf, int from, int count){
+        int[] kill = new int[count];
+        for(int i = 0; i < count; i++){
+            kill[i] = buf.getShort(from + i * SLOT_SIZE) & 0xFFFF;
+        }
+        compact(pg, kill);
     }
 }
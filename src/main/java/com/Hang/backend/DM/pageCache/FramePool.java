@@ -0,0 +1,64 @@
+package com.Hang.backend.DM.pageCache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 页帧池：缓存里的页都放在这里切出来的帧上，页被驱逐时帧还回来给下一次缺页用
+ *
+ * 帧是从一块块 SLAB_SIZE 大小的堆外内存（slab，ByteBuffer.allocateDirect）里按页大小切出来的，第 frame 个帧在第 frame / slabFrames 块 slab 上，
+ * 起始下标为 (frame % slabFrames) * pageSize。Page 拿到的是整块 slab 和自己的起始下标（Page.getOffset()），
+ * PageX、DataItem、Entry、Node 都用绝对下标直接在 slab 上读写（见 SubArray）。
+ * slab 按需分配，总帧数不超过缓存的容量（AbstractCache 保证缓存里的页数不超过 maxResource，驱逐在加载新页之前），
+ * 页的数据都不在堆上，堆上只有 容量 / slabFrames 个 ByteBuffer 对象，-mem 设多大堆都差不多，缺页时也不再分配内存。
+ * 读写文件时 FileChannel 直接在 slab 上读写，不用再经过 JDK 内部的临时堆外缓冲区拷一次。
+ * slab 一直用到关闭，随 FramePool 一起被回收，堆外内存的上限是 -XX:MaxDirectMemorySize（默认和最大堆一样大）
+ */
+class FramePool {
+    static final int SLAB_SIZE = 1 << 19;  // 一块 slab 512KB，不会大到变成 G1 的巨型对象；页大小最大 64KB，一块至少能切 8 个帧
+
+    private final int pageSize;
+    private final int slabFrames;  // 一块 slab 切多少个帧
+
+    private final int capacity;  // 最多能切出多少帧
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    private int[] free;  // 空闲帧号的栈
+    private int freeTop;
+    private int allocated;  // 已经切出去过的帧数，新帧从这里往后切
+
+    FramePool(int capacity, int pageSize) {
+        this.capacity = capacity;
+        this.pageSize = pageSize;
+        this.slabFrames = SLAB_SIZE / pageSize;
+        this.free = new int[capacity];
+    }
+
+    /**
+     * 拿一个帧，帧上是上一个页留下来的数据，调用方自己覆盖；帧用完了返回 -1
+     */
+    synchronized int allocate(){
+        if(freeTop > 0){
+            return free[--freeTop];
+        }
+        if(allocated >= capacity){
+            return -1;
+        }
+        if(allocated % slabFrames == 0){
+            slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+        }
+        return allocated++;
+    }
+
+    synchronized void free(int frame){
+        free[freeTop++] = frame;
+    }
+
+    synchronized ByteBuffer slab(int frame){
+        return slabs.get(frame / slabFrames);
+    }
+
+    int offset(int frame){
+        return (frame % slabFrames) * pageSize;
+    }
+}
@@ -0,0 +1,202 @@
+package com.Hang.backend.DM.pageCache;
+
+import com.Hang.backend.utils.Panic;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 内存映射模式的页面缓存，通过 PageCache.create/open 的 mmap 参数选用
+ *
+ * .db 文件按 CHUNK_SIZE 一块一块地以 READ_WRITE 方式映射进来，缺页读就是从映射区拷一页到页帧上，
+ * 写回就是往映射区里 put，都不走 read/write 系统调用；数据已经在内核的页缓存里时，读一页只是一次内存拷贝。
+ * 页帧是页帧池的堆外 slab，不直接用映射区当页帧：页帧要能在写日志之前改、还要能拍快照，映射区上的修改随时可能被内核写回，
+ * 所以这里还是要拷一次，省掉的是每次缺页的系统调用
+ *
+ * 映射区只覆盖文件已有的部分：映射超过文件大小的范围会把文件撑大，页数又是按文件大小算的，所以不能多映射。
+ * 新建的页落在映射区后面，先用 FileChannel 带偏移量地读写，文件比映射区多出 REMAP_STEP 以后再把最后一块重新映射
+ *
+ * 写到映射区的页记下每一块被写过的范围，force 时只对这些范围调用 MappedByteBuffer.force(index, length)，
+ * 映射区后面用 FileChannel 写的页再用 fc.force 落盘
+ */
+public class MappedPageCacheImpl extends PageCacheImpl {
+
+    static final int CHUNK_SIZE = 1 << 26;  // 64MB 一块，是页大小（2 的幂，最大 64KB）的整数倍，所以一页不会跨块
+    static final long REMAP_STEP = 1 << 20;  // 映射区后面多出 1MB 再重新映射
+
+    /**
+     * 映射区的快照：chunks 和 end 一起换，读的时候拿到的两个值是一致的
+     */
+    private static class Mapping {
+        final MappedByteBuffer[] chunks;
+        final long end;  // 映射区覆盖的文件范围是 [0, end)
+
+        Mapping(MappedByteBuffer[] chunks, long end) {
+            this.chunks = chunks;
+            this.end = end;
+        }
+    }
+
+    private volatile Mapping mapping;
+
+    // 每一块上还没 force 的范围 [dirtyFrom, dirtyTo)，dirtyFrom > dirtyTo 表示没有；由 this 保护
+    private int[] dirtyFrom = new int[0];
+    private int[] dirtyTo = new int[0];
+    private boolean tailDirty;  // 映射区后面有用 FileChannel 写过还没 force 的页
+
+    MappedPageCacheImpl(RandomAccessFile file, FileChannel filechannel, int maxResource, int pageSize) {
+        super(file, filechannel, maxResource, pageSize);
+        remap(0);
+    }
+
+    @Override
+    protected void read(int pgno, ByteBuffer data, int off) {
+        long offset = pageOffset(pgno);
+        Mapping m = mapping;
+        if(offset + pageSize > m.end){
+            super.read(pgno, data, off);
+            return;
+        }
+        data.put(off, m.chunks[(int) (offset / CHUNK_SIZE)], (int) (offset % CHUNK_SIZE), pageSize);  // 绝对位置的批量拷贝，不改 position，可以并发
+    }
+
+    @Override
+    protected void readRun(int pgno, int count, ByteBuffer data) {
+        for(int i = 0; i < count; i++){
+            read(pgno + i, data, i * pageSize);  // 映射区上读一页只是一次拷贝，不用合并成一次大读
+        }
+    }
+
+    @Override
+    protected void write(int pgno, ByteBuffer data, int off) {
+        long offset = pageOffset(pgno);
+        Mapping m = mapping;
+        if(offset + pageSize > m.end){
+            super.write(pgno, data, off);
+            synchronized (this){
+                tailDirty = true;
+            }
+            maybeGrow(m);
+            return;
+        }
+        int idx = (int) (offset / CHUNK_SIZE);
+        int pos = (int) (offset % CHUNK_SIZE);
+        m.chunks[idx].put(pos, data, off, pageSize);
+        synchronized (this){
+            dirtyFrom[idx] = Math.min(dirtyFrom[idx], pos);
+            dirtyTo[idx] = Math.max(dirtyTo[idx], pos + pageSize);
+        }
+    }
+
+    @Override
+    protected void write(int pgno, int count, ByteBuffer data) {
+        for(int i = 0; i < count; i++){
+            write(pgno + i, data, i * pageSize);  // 映射区上写一页只是一次拷贝，没有系统调用可省
+        }
+    }
+
+    @Override
+    protected void force() {
+        Mapping m;
+        int[] from, to;
+        boolean tail;
+        synchronized (this){
+            m = mapping;
+            from = dirtyFrom;
+            to = dirtyTo;
+            tail = tailDirty;
+            dirtyFrom = emptyRanges(from.length, Integer.MAX_VALUE);
+            dirtyTo = emptyRanges(to.length, 0);
+            tailDirty = false;
+        }
+        for(int i = 0; i < from.length; i++){
+            if(from[i] < to[i]){
+                m.chunks[i].force(from[i], to[i] - from[i]);
+            }
+        }
+        if(tail){
+            super.force();
+        }
+    }
+
+    @Override
+    public void truncateByPgno(int maxPgno) {
+        force();
+        super.truncateByPgno(maxPgno);
+        // 截掉的部分不能再通过旧的映射访问（会 SIGBUS），按新的文件大小重新映射，旧的映射交给 GC 去解除
+        synchronized (this){
+            mapping = new Mapping(new MappedByteBuffer[0], 0);
+            dirtyFrom = new int[0];
+            dirtyTo = new int[0];
+        }
+        remap(0);
+    }
+
+    /**
+     * 文件比映射区多出 REMAP_STEP 以后把映射区扩到文件末尾
+     */
+    private void maybeGrow(Mapping m){
+        long length = pageOffset(getPageNumber() + 1);
+        if(length - m.end >= REMAP_STEP){
+            remap(m.end);
+        }
+    }
+
+    /**
+     * 把映射区扩到当前文件大小（按页对齐），seen 是调用方看到的映射区大小，已经被别的线程扩过就不用再扩
+     */
+    private synchronized void remap(long seen){
+        Mapping m = mapping;
+        if(m != null && m.end > seen){
+            return;
+        }
+        long length = 0;
+        try{
+            length = fc.size() / pageSize * pageSize;
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+        MappedByteBuffer[] old = m == null ? new MappedByteBuffer[0] : m.chunks;
+        int n = (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        MappedByteBuffer[] chunks = new MappedByteBuffer[n];
+        try{
+            for(int i = 0; i < n; i++){
+                long start = (long) i * CHUNK_SIZE;
+                long size = Math.min(CHUNK_SIZE, length - start);
+                if(i < old.length && old[i].capacity() == size){
+                    chunks[i] = old[i];  // 已经映射满的块不用重新映射
+                    continue;
+                }
+                if(i < old.length){
+                    old[i].force();  // 旧的映射上可能还有没 force 的页，换掉之前先刷下去
+                }
+                chunks[i] = fc.map(FileChannel.MapMode.READ_WRITE, start, size);
+            }
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+        dirtyFrom = grow(dirtyFrom, n, Integer.MAX_VALUE);
+        dirtyTo = grow(dirtyTo, n, 0);
+        for(int i = 0; i < Math.min(old.length, n); i++){
+            if(chunks[i] != old[i]){
+                dirtyFrom[i] = Integer.MAX_VALUE;
+                dirtyTo[i] = 0;
+            }
+        }
+        mapping = new Mapping(chunks, length);
+    }
+
+    private static int[] emptyRanges(int n, int value){
+        return grow(new int[0], n, value);
+    }
+
+    private static int[] grow(int[] ranges, int n, int value){
+        int[] res = new int[n];
+        for(int i = 0; i < n; i++){
+            res[i] = i < ranges.length ? ranges[i] : value;
+        }
+        return res;
+    }
+}
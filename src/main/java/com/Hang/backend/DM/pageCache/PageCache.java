@@ -2,11 +2,13 @@ package com.Hang.backend.DM.pageCache;
 
 
 import com.Hang.backend.DM.page.Page;
+import com.Hang.backend.DM.page.PageOne;
 import com.Hang.backend.utils.Panic;
 import com.Hang.common.Error;
 
 import java.io.File;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
 /**
@@ -20,7 +22,14 @@ import java.nio.channels.FileChannel;
  * 接口中的静态方法可以直接看成本接口作为父类的一个构造器，最终就是返回一个这个接口作为父类的一个对象
  */
 public interface PageCache {
-    public static final int PAGE_SIZE = 1 << 13;  // 这是每页的大小---这里是参照大多数数据库的设计，每页的大小默认设置为8KB(2的13次方)
+    /*
+    页大小是建库时定下来的，记在第一页的文件头里（见 PageOne），打开时从文件头读出来；
+    没有文件头的老文件都是 8KB。页大小必须是 2 的幂，在 [MIN_PAGE_SIZE, MAX_PAGE_SIZE] 之间，
+    不能超过 64KB 是因为页内偏移（槽里记的记录偏移、DataItem 的 Size）都是 2 字节的无符号数
+     */
+    public static final int DEFAULT_PAGE_SIZE = 1 << 13;  // 这是每页的大小---这里是参照大多数数据库的设计，每页的大小默认设置为8KB(2的13次方)
+    public static final int MIN_PAGE_SIZE = 1 << 12;
+    public static final int MAX_PAGE_SIZE = 1 << 16;
 
     int newPage(byte[] initData);
     Page getPage(int pano) throws Exception;
@@ -30,8 +39,52 @@ public interface PageCache {
     void truncateByPgno(int maxPgno);
     int getPageNumber();
     void flushPage(Page pg);
+    int getPageSize();
+
+    /**
+     * 第 2 到第 legacyPages 页是升级到分槽页之前的追加格式的页（见 PageX），由 DataManager 打开时按 PageOne 里记的设好
+     */
+    void setLegacyPages(int legacyPages);
+    boolean isLegacy(int pgno);
+
+    /**
+     * 把缓存里所有的脏页写回磁盘，最后只 force 一次（检查点用）
+     */
+    void flushAll();
+
+    /**
+     * 提示从 pgno 开始的 count 页马上要顺序地读，后台异步地把它们读进缓存（只是提示，可能被忽略）
+     */
+    void prefetch(int pgno, int count);
+
+    /**
+     * 写回发出的写调用次数和一共写的页数，两者之比就是相邻脏页合并成一次写的平均页数
+     */
+    long getWriteCalls();
+    long getPagesWritten();
+
+    /**
+     * 除了调用方自己拿着的这一个引用以外，还有没有别人拿着 pg（比如缓存着的 DataItem 指着页里的数据）。
+     * 调用方持有 pg 的锁时，返回 false 以后别人再拿到这页也要先拿页锁才能读页里的槽，所以这时可以在页内挪动记录
+     */
+    boolean isShared(Page pg);
 
     public static PageCacheImpl create(String path, long memory){
+        return create(path, memory, false);
+    }
+
+    public static PageCacheImpl create(String path, long memory, boolean mmap){
+        return create(path, memory, mmap, DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * mmap 为 true 时用内存映射的方式读写 .db 文件（MappedPageCacheImpl），否则用 FileChannel
+     * pageSize 由调用方写进第一页的文件头（PageOne.InitRaw），之后打开时从那里读出来
+     */
+    public static PageCacheImpl create(String path, long memory, boolean mmap, int pageSize){
+        if(!isValidPageSize(pageSize)){
+            Panic.panic(Error.InvalidPageSizeException);
+        }
         File f = new File(path + PageCacheImpl.DB_SUFFIX);
         try {
             if(!f.createNewFile()){
@@ -53,10 +106,14 @@ public interface PageCache {
             Panic.panic(e);
         }
 
-        return new PageCacheImpl(raf,fc,(int) memory / PAGE_SIZE);
+        return newPageCache(raf, fc, memory, mmap, pageSize);
+    }
+
+    public static PageCacheImpl open(String path, long memory){
+        return open(path, memory, false);
     }
 
-    public static PageCacheImpl open(String path, long memory){  // 相比create方法就是这里认定这个文件是存在的
+    public static PageCacheImpl open(String path, long memory, boolean mmap){  // 相比create方法就是这里认定这个文件是存在的
         File f = new File(path + PageCacheImpl.DB_SUFFIX);  // PageCacheImpl.DB_SUFFIX是文件后缀
         if(!f.exists()){
             Panic.panic(Error.FileNotExistsException);
@@ -72,7 +129,36 @@ public interface PageCache {
         }catch (Exception e){
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf,fc,(int) memory / PAGE_SIZE);
+        return newPageCache(raf, fc, memory, mmap, readPageSize(fc));
+    }
+
+    /**
+     * 从第一页的文件头读出页大小，文件头的格式见 PageOne
+     */
+    private static int readPageSize(FileChannel fc){
+        ByteBuffer header = ByteBuffer.allocate(PageOne.HEADER_SIZE);
+        try{
+            while(header.hasRemaining() && fc.read(header, header.position()) >= 0){
+            }
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+        int pageSize = PageOne.parsePageSize(header.array());
+        if(!isValidPageSize(pageSize)){
+            Panic.panic(Error.InvalidPageSizeException);
+        }
+        return pageSize;
+    }
+
+    static boolean isValidPageSize(int pageSize){
+        return pageSize >= MIN_PAGE_SIZE && pageSize <= MAX_PAGE_SIZE && Integer.bitCount(pageSize) == 1;
+    }
+
+    private static PageCacheImpl newPageCache(RandomAccessFile raf, FileChannel fc, long memory, boolean mmap, int pageSize){
+        int maxResource = (int) (memory / pageSize);
+        PageCacheImpl pc = mmap ? new MappedPageCacheImpl(raf, fc, maxResource, pageSize) : new PageCacheImpl(raf, fc, maxResource, pageSize);
+        pc.start();
+        return pc;
     }
 
 }
@@ -9,23 +9,90 @@ import com.Hang.common.Error;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * 脏页写回：
+ * 修改页不再同步刷盘，由后台的 writer 线程每隔 WRITEBACK_INTERVAL_MS 把缓存里的脏页收集起来，
+ * 按页号排好序，页号相邻的脏页拼成一段（最多 WRITE_RUN_BYTES）用一次写下去，一批只 force 一次。被驱逐的脏页和新建的页只 write 不 force，
+ * 它们的持久性由 WAL 保证，下一次 writer 或者检查点 force 整个文件的时候一起落盘。
+ *
+ * 先写日志后写数据（WAL）：
+ * 插入是先写日志再改页，所以页上的修改一定已经有日志了；
+ * 更新（DataItem 的 before() 到 after()）是先改页再写日志，这期间页上有还没写日志的修改（Page.hasUnlogged()），
+ * 这样的页不能写回，writer 会跳过它留到下一轮，检查点会等它写完日志再写。
+ * 写回时在页锁里判断并拷一份快照，所以快照里不会有写了一半的修改
+ *
+ * 写回和驱逐都是先清脏标记再写，清完到写完之间这页不在任何人的脏页列表里。
+ * 检查点（flushAll）要在 force 之前等这些写都落到文件上，不然它截掉日志的时候这页的修改还没写下去：
+ * 清脏标记之前先在 unwritten 上登记、写完再销掉（writer 一轮登记一次，驱逐一页登记一次）。登记按代分开记，
+ * flushAll 写完自己收集的脏页后换一代，只等换代之前登记的写都完成再 force，之后源源不断的新驱逐不会让它一直等下去。
+ * 登记和销掉都不会阻塞，所以拿着段锁驱逐、拿着登记去拿段锁都不会和检查点互相等
+ *
+ * 读写页都用带偏移量的 FileChannel.read(buf, offset)/write(buf, offset)（pread/pwrite），
+ * 不改通道共享的 position，所以不需要全局的文件锁，不同页的缺页读可以并行
+ *
+ * 缓存里的页都放在页帧池（FramePool）切出来的堆外的帧上，页被驱逐时帧还给池子，缺页时不再分配内存；
+ * 缺页读、驱逐写直接在帧上读写文件
+ *
+ * 预读：
+ * 连续两次缺页的页号相邻（全表扫描、顺着叶子链扫 B+ 树）就认为是顺序读，把后面 READ_AHEAD_BYTES 的页交给后台的 prefetcher 线程，
+ * 之后每读到一个预读窗口的第一页就把下一个窗口也交出去，预读始终领先一个窗口；调用方也可以用 prefetch(pgno, count) 直接提示。
+ * prefetcher 把不在缓存里的连续页用一次大的读读进来，再一页一页地放进缓存（不钉住，没被用到的最先被驱逐）。
+ * 读文件和放进缓存之间如果有页被写回过（被驱逐的脏页、writer 写回的页、新建的页），读到的可能是旧数据，
+ * 所以所有写页都记在 writes/writing 上，放进缓存时（在段锁里）发现有写发生过或者正在写，这一批剩下的页就不要了
+ *
+ * 真正读写文件的只有 read/readRun/write/force 这几个方法，MappedPageCacheImpl 覆盖它们改成走内存映射
+ */
 public class PageCacheImpl extends AbstractCache<Page> implements
 PageCache {
 
     private static final int MEM_MIN_LIM  = 10;
     public static final String DB_SUFFIX = ".db";
 
-    private RandomAccessFile file;
-    private FileChannel fc;
-    private Lock fileLock;
+    static final long WRITEBACK_INTERVAL_MS = 500;
+    // 两者都按字节算，换成页数随页大小变，一次 I/O 的大小不变
+    static final int WRITE_RUN_BYTES = 1 << 18;  // 写回时相邻的脏页一次最多合并写多少（256KB）
+    static final int READ_AHEAD_BYTES = 1 << 18;  // 预读窗口，也是一次预读 I/O 最多读多少（256KB）
+    private static final int PREFETCH_QUEUE = 16;
+
+    protected RandomAccessFile file;
+    protected FileChannel fc;
 
     private AtomicInteger pageNumbers;  // 原子整数变量，用于多线程环境中对页数的计数
+    private final FramePool pool;
+
+    private final int capacity;  // 缓存最多放几页
+    protected final int pageSize;
+    private volatile int legacyPages;  // 老格式（追加格式）的页到第几页为止，见 PageCache.setLegacyPages
+    private final int readAhead;  // 预读窗口的页数
+    private final int maxWriteRun;  // 写回时一段最多几页
+
+    private Thread writer;  // 后台写回脏页的线程
+    private final Object wakeup = new Object();  // close() 在上面叫醒 writer
+    private volatile boolean closed;
+    private final int[] unwritten = new int[2];  // 每一代清了脏标记还没写完的登记数，见类注释；用它自己当锁
+    private int unwrittenGen;  // 新的登记记在哪一代
+    private final Object flushBarrier = new Object();  // 同时只有一个 flushAll 在换代、等旧的一代
 
-    PageCacheImpl(RandomAccessFile file, FileChannel filechannel, int maxResource) {  // maxResource这是最多几个Page
+    private Thread prefetcher;  // 后台预读的线程
+    private final BlockingQueue<int[]> prefetchQueue = new ArrayBlockingQueue<>(PREFETCH_QUEUE);  // 待预读的 {起始页号, 页数}
+    private static final int[] STOP = new int[0];  // 关闭时放进队列叫醒 prefetcher
+    private volatile int lastMiss;  // 上一次缺页的页号
+    private volatile int readAheadMark;  // 最近一个预读窗口的第一页，读到它时发起下一个窗口
+    private volatile int readAheadStart;  // 这一轮顺序读交给 prefetcher 的范围是 [readAheadStart, readAheadNext)
+    private volatile int readAheadNext;
+    private final AtomicLong writes = new AtomicLong();  // 写完的页数，预读用来判断读到的是不是旧数据
+    private final AtomicInteger writing = new AtomicInteger();  // 正在写的页数
+    private final AtomicLong writeCalls = new AtomicLong();  // 写回（驱逐、flushPage、writer、检查点）发出的写调用次数
+    private final AtomicLong pagesWritten = new AtomicLong();  // 这些写调用一共写了多少页
+
+    PageCacheImpl(RandomAccessFile file, FileChannel filechannel, int maxResource, int pageSize) {  // maxResource这是最多几个Page
         super(maxResource); // 这是调用构造器，让这个变量由父类保存下来
         if(maxResource < MEM_MIN_LIM){
             Panic.panic(Error.MemTooSmallException);
@@ -39,17 +106,38 @@ PageCache {
 
         this.file = file;
         this.fc = filechannel;
-        this.pageNumbers = new AtomicInteger((int) length / PAGE_SIZE);
-        this.fileLock = new ReentrantLock();
+        this.pageSize = pageSize;
+        this.pageNumbers = new AtomicInteger((int) (length / pageSize));
+        this.pool = new FramePool(maxResource, pageSize);
+        this.capacity = maxResource;
+        this.readAhead = READ_AHEAD_BYTES / pageSize;
+        // 一段最多钉住 maxWriteRun 页，不然小缓存会被 writer 占满
+        this.maxWriteRun = Math.max(1, Math.min(WRITE_RUN_BYTES / pageSize, maxResource / 4));
+    }
+
+    /**
+     * 启动后台写回线程和预读线程，由 PageCache.create/open 在构造完之后调用，这样子类的字段都已经初始化好了
+     */
+    void start(){
+        writer = new Thread(this::writeBackLoop, "page-writer");
+        writer.setDaemon(true);
+        writer.start();
+        prefetcher = new Thread(this::prefetchLoop, "page-prefetcher");
+        prefetcher.setDaemon(true);
+        prefetcher.start();
     }
 
     @Override
     public int newPage(byte[] initData) {
-        int pgno = pageNumbers.incrementAndGet();
-        // 明白了，内存中数据是以页为单位进行保存的，Page是接口，PageImpl就是页的具体实现
-        Page pg = new PageImpl(pgno,initData,null);
-        flush(pg); // flush就是将这个数据写到filechannel，然后持久化
-        return pgno;
+        writing.incrementAndGet();  // 在分配页号之前，预读看到这个页号的时候一定也能看到它正在写
+        try{
+            int pgno = pageNumbers.incrementAndGet();
+            write(pgno, ByteBuffer.wrap(initData), 0); // 只要把文件撑大，不用 force，页上的数据都有日志
+            return pgno;
+        }finally{
+            writes.incrementAndGet();
+            writing.decrementAndGet();
+        }
     }
 
     @Override
@@ -67,12 +155,33 @@ PageCache {
 //        }
 //        return new PageImpl(pgno,buf.array(),null);
         // 官方的
+        if(pgno == readAheadMark){
+            int next = readAheadNext;
+            readAheadMark = next;
+            readAheadNext = next + readAhead;
+            prefetch(next, readAhead);
+        }
         return get((long)pgno);
     }
 
     @Override
     public void close() {
+        // 后台线程都不能 interrupt：正在读写文件的线程被 interrupt 会把 FileChannel 关掉
+        synchronized (wakeup){
+            closed = true;
+            wakeup.notifyAll();
+        }
+        prefetchQueue.clear();
+        prefetchQueue.offer(STOP);
+        try{
+            writer.join();
+            prefetcher.join();
+        }catch (InterruptedException e){
+            Panic.panic(e);
+        }
+        writeBack(true);  // 先按段把脏页写下去，不然下面清空缓存时是一页一页地写
         super.close();  // 这是关闭缓存，清空所有的缓存数据
+        force();  // 驱逐时只写没刷，关闭前统一刷一次
         try{
             fc.close();
             file.close();
@@ -95,21 +204,18 @@ PageCache {
         所以：key 是 long，只是为了泛化、统一接口设计，但实际上它存储的就是一个 int 范围的页号。(都是页号的意思)
          */
         int pgno = (int) key;
-        // 计算页码对应的偏移量
-        long offset = PageCacheImpl.pageOffset(pgno);
-
-        //分配一个大小为PAGE_SIZE的ByteBuffer
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        // 锁定文件确保线程安全
-        fileLock.lock();
-        try{
-            fc.position(offset);
-            fc.read(buf);
-        }catch(Exception e){
-            Panic.panic(e);
+        noteMiss(pgno);
+        int frame = pool.allocate();
+        if(frame < 0){
+            // 缓存里的页数不会超过帧数，走不到这里；万一走到了就退回到单独分配一页
+            ByteBuffer data = ByteBuffer.allocate(pageSize);
+            read(pgno, data, 0);
+            return new PageImpl(pgno,data,this);
         }
-        fileLock.unlock();
-        return new PageImpl(pgno,buf.array(),this);
+        ByteBuffer slab = pool.slab(frame);
+        int offset = pool.offset(frame);
+        read(pgno, slab, offset);  // 帧上还是上一个页的数据，整页覆盖掉
+        return new PageImpl(pgno,slab,offset,pageSize,frame,this);
     }
 
     /**
@@ -121,8 +227,18 @@ PageCache {
     @Override
     protected void releaseForCache(Page pg) {
         if(pg.isDirty()){ // 脏数据就是修改但未提交的数据嘛
-            flush(pg);  // 这就是提交的操作,就是写道磁盘里(其实就是mysql中)
-            pg.setDirty(false);
+            // 能被驱逐说明没人引用它，也就没有还没写日志的修改；只写不 force，持久性靠 WAL
+            int gen = beginUnwritten();
+            try{
+                pg.setDirty(false);
+                writePage(pg.getPageNumber(), pg.getData(), pg.getOffset());
+            }finally{
+                endUnwritten(gen);
+            }
+        }
+        int frame = ((PageImpl) pg).getFrame();
+        if(frame >= 0){
+            pool.free(frame);  // 已经移出缓存了，没人能再拿到这页，帧可以给下一次缺页用
         }
     }
 
@@ -155,19 +271,334 @@ PageCache {
     }
 
 
+    /**
+     * 检查点用：所有脏页都要写下去，有还没写日志的修改的页等它写完日志再写
+     */
+    @Override
+    public void flushAll() {
+        writeBack(true);
+    }
+
+    private void writeBackLoop(){
+        while(true){
+            synchronized (wakeup){
+                try{
+                    if(!closed){
+                        wakeup.wait(WRITEBACK_INTERVAL_MS);
+                    }
+                }catch (InterruptedException e){
+                    return;
+                }
+            }
+            if(closed){
+                return;  // 剩下的脏页由 close() 写回
+            }
+            writeBack(false);
+        }
+    }
+
+    /**
+     * 把缓存里的脏页按页号排序后依次写下去，最后只 force 一次
+     * wait 为 false 时（writer）跳过有还没写日志的修改的页，留到下一轮；
+     * wait 为 true 时（检查点、关闭）还要等别的线程清了脏标记的页都写完再 force，force 之后缓存里之前的修改都落盘了
+     */
+    private void writeBack(boolean wait){
+        if(wait){
+            writeDirty(true);
+            waitUnwritten();  // 等 writer 和驱逐手上已经清了脏标记的页写完
+        }else{
+            int gen = beginUnwritten();
+            try{
+                if(!writeDirty(false)){
+                    return;
+                }
+            }finally{
+                endUnwritten(gen);
+            }
+        }
+        force();  // 一批只刷一次
+    }
+
+    // 清脏标记之前登记，返回登记在哪一代，写完用它销掉
+    private int beginUnwritten(){
+        synchronized (unwritten){
+            unwritten[unwrittenGen]++;
+            return unwrittenGen;
+        }
+    }
+
+    private void endUnwritten(int gen){
+        synchronized (unwritten){
+            if(--unwritten[gen] == 0){
+                unwritten.notifyAll();
+            }
+        }
+    }
+
+    // 换一代，等换代之前登记的写都完成
+    private void waitUnwritten(){
+        boolean interrupted = false;
+        synchronized (flushBarrier){
+            synchronized (unwritten){
+                int gen = unwrittenGen;
+                unwrittenGen ^= 1;
+                while(unwritten[gen] > 0){
+                    try{
+                        unwritten.wait();
+                    }catch (InterruptedException e){
+                        interrupted = true;  // 检查点不能半途而废，接着等，返回前再把中断标记设回去
+                    }
+                }
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // 写下去所有的脏页，没有脏页返回 false
+    private boolean writeDirty(boolean wait){
+        List<Page> dirty = collectCached(Page::isDirty);
+        if(dirty.isEmpty()){
+            return false;
+        }
+        dirty.sort(Comparator.comparingInt(Page::getPageNumber));  // 按页号顺序写，相邻的脏页拼成一段
+        ByteBuffer snap = ByteBuffer.allocate(maxWriteRun * pageSize);  // 一段的快照连续地拷在这里，一次写下去
+        Page[] run = new Page[maxWriteRun];
+        int n = 0;
+        for(Page pg : dirty){
+            if(n > 0 && (n == maxWriteRun || pg.getPageNumber() != run[0].getPageNumber() + n)){
+                writeRun(run, n, snap);  // 接不上了，先把攒的这一段写下去
+                n = 0;
+            }
+            if(!pin(pg.getPageNumber(), pg)){
+                continue;  // 已经被驱逐了，驱逐时写过了
+            }
+            boolean ok = false;
+            try{
+                ok = snapshot(pg, snap, n * pageSize, wait);
+            }finally{
+                if(ok){
+                    run[n++] = pg;  // 写下去之前一直钉着，免得被驱逐后这份旧快照盖掉驱逐时写的新数据
+                }else{
+                    pg.release();
+                }
+            }
+        }
+        if(n > 0){
+            writeRun(run, n, snap);
+        }
+        return true;
+    }
+
+    /**
+     * 把 snap 里连续的 n 页快照一次写到 run[0] 开始的位置，写完放开这些页
+     */
+    private void writeRun(Page[] run, int n, ByteBuffer snap){
+        writing.incrementAndGet();
+        try{
+            write(run[0].getPageNumber(), n, snap);
+        }finally{
+            writes.incrementAndGet();
+            writing.decrementAndGet();
+            writeCalls.incrementAndGet();
+            pagesWritten.addAndGet(n);
+            for(int i = 0; i < n; i++){
+                run[i].release();
+                run[i] = null;
+            }
+        }
+    }
+
+    /**
+     * 在页锁里把页拷到 snap 的 off 处并清掉脏标记；页上有还没写日志的修改时，wait 为 true 就等它们写完日志，否则返回 false
+     * 先清脏标记再写，写的过程中如果有人改了这页，它会重新被标成脏页，不会漏掉
+     */
+    private boolean snapshot(Page pg, ByteBuffer snap, int off, boolean wait){
+        pg.lock();
+        try{
+            if(pg.hasUnlogged()){
+                if(!wait){
+                    return false;
+                }
+                pg.awaitLogged();  // before() 到 after() 之间只有改内存和写一条日志，睡在页上等 endUnlogged() 叫醒
+            }
+            pg.setDirty(false);
+            snap.put(off, pg.getData(), pg.getOffset(), pageSize);
+            return true;
+        }finally{
+            pg.unlock();
+        }
+    }
+
     public void flush(Page pg){  // 就是提交的操作
-        int pgno = pg.getPageNumber();
+        writePage(pg.getPageNumber(), pg.getData(), pg.getOffset());
+        force();   // 就是写入到filechannel然后持久化
+    }
+
+    // 所有写页都走这里，记下来给预读判断读到的数据是不是旧的
+    private void writePage(int pgno, ByteBuffer data, int off){
+        writing.incrementAndGet();
+        try{
+            write(pgno, data, off);
+        }finally{
+            writes.incrementAndGet();  // 先加 writes 再减 writing，看到 writing 为 0 的一定能看到 writes 变了
+            writing.decrementAndGet();
+            writeCalls.incrementAndGet();
+            pagesWritten.incrementAndGet();
+        }
+    }
+
+    /**
+     * 提示从 pgno 开始的 count 页马上要用，交给 prefetcher 异步读进缓存；队列满了就丢掉这个提示。
+     * 一次最多预读缓存容量的一半，免得把正在用的页挤出去
+     */
+    @Override
+    public void prefetch(int pgno, int count) {
+        count = Math.min(count, capacity / 2);
+        if(pgno < 1 || count <= 0){
+            return;
+        }
+        prefetchQueue.offer(new int[]{pgno, count});
+    }
+
+    // 顺序访问检测，见类注释
+    private void noteMiss(int pgno){
+        int prev = lastMiss;
+        lastMiss = pgno;
+        if(pgno == prev + 1 && (pgno < readAheadStart || pgno >= readAheadNext)){  // 已经交出去的范围里的缺页说明 prefetcher 还没追上，不用再交
+            readAheadStart = pgno + 1;
+            readAheadMark = pgno + 1;
+            readAheadNext = pgno + 1 + readAhead;
+            prefetch(pgno + 1, readAhead);
+        }
+    }
+
+    private void prefetchLoop(){
+        ByteBuffer buf = ByteBuffer.allocateDirect(readAhead * pageSize);  // 预读线程一直用这一块，读出来再拷到帧上
+        while(!closed){
+            int[] req;
+            try{
+                req = prefetchQueue.take();
+            }catch (InterruptedException e){
+                return;
+            }
+            if(req == STOP){
+                return;
+            }
+            int end = Math.min(req[0] + req[1], getPageNumber() + 1);
+            int pgno = req[0];
+            while(pgno < end && !closed){
+                // 跳过已经在缓存里的页，找一段连续的不在缓存里的页一次读进来
+                if(isCached(pgno)){
+                    pgno++;
+                    continue;
+                }
+                int count = 1;
+                while(count < readAhead && pgno + count < end && !isCached(pgno + count)){
+                    count++;
+                }
+                if(!prefetchRun(pgno, count, buf)){
+                    break;
+                }
+                pgno += count;
+            }
+        }
+    }
+
+    /**
+     * 把 [pgno, pgno + count) 一次读进来再一页一页放进缓存，读的过程中有页被写过就不要了，返回 false
+     */
+    private boolean prefetchRun(int pgno, int count, ByteBuffer buf){
+        long seen = writes.get();
+        if(writing.get() != 0){
+            return false;
+        }
+        count = Math.min(count, getPageNumber() + 1 - pgno);  // 看到 writing 为 0 之后再取页数，这些页都已经写完了
+        if(count <= 0){
+            return false;
+        }
+        readRun(pgno, count, buf);
+        for(int i = 0; i < count; i++){
+            int frame = pool.allocate();
+            if(frame < 0){
+                return false;  // 缓存里的页已经占满了所有帧
+            }
+            ByteBuffer slab = pool.slab(frame);
+            int offset = pool.offset(frame);
+            slab.put(offset, buf, i * pageSize, pageSize);
+            Page pg = new PageImpl(pgno + i, slab, offset, pageSize, frame, this);
+            if(!offer(pgno + i, pg, () -> writing.get() == 0 && writes.get() == seen)){
+                pool.free(frame);
+                if(writes.get() != seen || writing.get() != 0){
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 把第 pgno 页读到 data 的 [off, off + pageSize) 里
+     * 带偏移量的读不碰通道的 position，不用加锁；读到文件尾（比如恢复时页还没写下去）剩下的部分填 0
+     */
+    protected void read(int pgno, ByteBuffer data, int off){
+        readFully(pgno, data.slice(off, pageSize));  // 切出这一页来读，不动 data 的 position
+    }
+
+    /**
+     * 把从 pgno 开始的 count 页一次读到 data 的开头，读到文件尾剩下的部分填 0（预读用）
+     */
+    protected void readRun(int pgno, int count, ByteBuffer data){
+        readFully(pgno, data.slice(0, count * pageSize));
+    }
+
+    // 从第 pgno 页开始把 buf 读满，读到文件尾剩下的部分填 0
+    private void readFully(int pgno, ByteBuffer buf){
         long offset = pageOffset(pgno);
-        fileLock.lock();
         try{
-            ByteBuffer buf = ByteBuffer.wrap(pg.getData());
-            fc.position(offset);  // fc就是操作实际磁盘文件的通道
-            fc.write(buf);
-            fc.force(false);   // 就是写入到filechannel然后持久化
+            while(buf.hasRemaining() && fc.read(buf, offset + buf.position()) >= 0){
+            }
+        }catch(Exception e){
+            Panic.panic(e);
+        }
+        if(buf.hasRemaining()){
+            buf.put(new byte[buf.remaining()]);
+        }
+    }
+
+    // 把 data 的 [off, off + pageSize) 写到第 pgno 页，只写不 force，带偏移量的写，不用加锁
+    protected void write(int pgno, ByteBuffer data, int off){
+        long offset = pageOffset(pgno);
+        try{
+            ByteBuffer buf = data.slice(off, pageSize);
+            while(buf.hasRemaining()){
+                fc.write(buf, offset + buf.position());  // fc就是操作实际磁盘文件的通道
+            }
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+    }
+
+    // 把 data 里连续的 count 页写到第 pgno 页开始的位置，一次带偏移量的写
+    protected void write(int pgno, int count, ByteBuffer data){
+        long offset = pageOffset(pgno);
+        try{
+            ByteBuffer buf = data.slice(0, count * pageSize);
+            while(buf.hasRemaining()){
+                fc.write(buf, offset + buf.position());
+            }
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+    }
+
+    // 把之前 write 下去的页落盘
+    protected void force(){
+        try{
+            fc.force(false);
         }catch (Exception e){
             Panic.panic(e);
-        }finally{
-            fileLock.unlock();
         }
     }
 
@@ -176,7 +607,37 @@ PageCache {
         return pageNumbers.get();
     }
 
-    public static long pageOffset(int pgno){
-        return (pgno - 1) * PAGE_SIZE;
+    @Override
+    public long getWriteCalls(){
+        return writeCalls.get();
+    }
+
+    @Override
+    public long getPagesWritten(){
+        return pagesWritten.get();
+    }
+
+    @Override
+    public boolean isShared(Page pg){
+        return references(pg.getPageNumber()) > 1;
+    }
+
+    @Override
+    public int getPageSize(){
+        return pageSize;
+    }
+
+    @Override
+    public void setLegacyPages(int legacyPages){
+        this.legacyPages = legacyPages;
+    }
+
+    @Override
+    public boolean isLegacy(int pgno){
+        return pgno > 1 && pgno <= legacyPages;
+    }
+
+    protected long pageOffset(int pgno){
+        return (long) (pgno - 1) * pageSize;  // 先转成 long，文件超过 2GB 时不溢出
     }  // 这是因为数据页是从第1页开始的，但是在缓存层面则是从0开始的
 }
@@ -0,0 +1,155 @@
+package com.Hang.backend.DM.pageIndex;
+
+import com.Hang.backend.utils.Panic;
+import com.Hang.common.Error;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * 持久化的空闲空间表（FSM），放在 .fsm 文件里，启动时用它来填 PageIndex，不用把每一页都读一遍
+ *
+ * 文件格式：
+ * [Free]2 [Free]2 ...
+ * 第 pgno 页的空闲空间是文件里第 pgno 个 2 字节的无符号数，没记过的页是 UNKNOWN。
+ * 内存里整个表就是一个 byte[]，按 BLOCK_SIZE 分块记脏块，flush 时只把脏块写下去
+ *
+ * FSM 不写日志，只是一个提示：
+ * DataManager 每次插入完都会更新这一页的空闲空间，检查点和关闭时写回文件（关闭时在写 PageOne 的 ValidCheck 之前）。
+ * 只有上次是正常关闭的，启动时才相信它；崩溃过的话恢复会改页，还是扫一遍所有页，顺便把 FSM 重新写对
+ */
+public class FreeSpaceMap {
+    public static final String FSM_SUFFIX = ".fsm";
+    public static final int UNKNOWN = 0xFFFF;  // 页内空闲空间最多 65533，不会和它冲突
+    private static final int ENTRY_SIZE = 2;
+    static final int BLOCK_SIZE = 1 << 12;  // 按 4KB 一块写回
+
+    private final RandomAccessFile file;
+    private final FileChannel fc;
+    private byte[] map;  // 由 this 保护
+    private final BitSet dirty = new BitSet();  // 哪些块改过还没写下去
+
+    private FreeSpaceMap(RandomAccessFile file, FileChannel fc, byte[] map) {
+        this.file = file;
+        this.fc = fc;
+        this.map = map;
+    }
+
+    public static FreeSpaceMap create(String path){
+        File f = new File(path + FSM_SUFFIX);
+        try{
+            if(!f.createNewFile()){
+                Panic.panic(Error.FileExistsException);
+            }
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+        return open(f, new byte[0]);
+    }
+
+    /**
+     * 打开已有的 FSM；加 FSM 之前建的库没有这个文件，就新建一个空的，所有页都是 UNKNOWN
+     */
+    public static FreeSpaceMap open(String path){
+        File f = new File(path + FSM_SUFFIX);
+        byte[] map = new byte[0];
+        try{
+            if(!f.createNewFile()){
+                map = new byte[(int) (f.length() / ENTRY_SIZE * ENTRY_SIZE)];
+            }
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+        FreeSpaceMap fsm = open(f, map);
+        fsm.load();
+        return fsm;
+    }
+
+    private static FreeSpaceMap open(File f, byte[] map){
+        if(!f.canRead() || !f.canWrite()){
+            Panic.panic(Error.FileCannotRWException);
+        }
+        RandomAccessFile raf = null;
+        try{
+            raf = new RandomAccessFile(f, "rw");
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+        return new FreeSpaceMap(raf, raf.getChannel(), map);
+    }
+
+    private void load(){
+        ByteBuffer buf = ByteBuffer.wrap(map);
+        try{
+            while(buf.hasRemaining() && fc.read(buf, buf.position()) >= 0){
+            }
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 第 pgno 页的空闲空间，没记过返回 UNKNOWN
+     */
+    public synchronized int get(int pgno){
+        int pos = pgno * ENTRY_SIZE;
+        if(pos + ENTRY_SIZE > map.length){
+            return UNKNOWN;
+        }
+        return ((map[pos] & 0xff) << 8) | (map[pos + 1] & 0xff);
+    }
+
+    public synchronized void set(int pgno, int freeSpace){
+        int pos = pgno * ENTRY_SIZE;
+        if(pos + ENTRY_SIZE > map.length){
+            grow(pos + ENTRY_SIZE);
+        }
+        map[pos] = (byte) (freeSpace >> 8);
+        map[pos + 1] = (byte) freeSpace;
+        dirty.set(pos / BLOCK_SIZE);
+    }
+
+    // 扩出来的部分都是 UNKNOWN，也都要写下去
+    private void grow(int need){
+        int old = map.length;
+        map = Arrays.copyOf(map, Math.max(need, old * 2));
+        Arrays.fill(map, old, map.length, (byte) 0xff);
+        dirty.set(old / BLOCK_SIZE, (map.length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+
+    /**
+     * 把改过的块写下去并落盘
+     */
+    public synchronized void flush(){
+        if(dirty.isEmpty()){
+            return;
+        }
+        try{
+            for(int b = dirty.nextSetBit(0); b >= 0; b = dirty.nextSetBit(b + 1)){
+                int from = b * BLOCK_SIZE;
+                ByteBuffer buf = ByteBuffer.wrap(map, from, Math.min(BLOCK_SIZE, map.length - from));
+                while(buf.hasRemaining()){
+                    fc.write(buf, buf.position());  // buf 的 position 就是在 map 里的下标，也就是文件里的位置
+                }
+            }
+            fc.force(false);
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+        dirty.clear();
+    }
+
+    public void close(){
+        flush();
+        try{
+            fc.close();
+            file.close();
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package com.Hang.backend.DM.pageIndex;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 public class PageInfo {
 
     public int pgno;
     public int freeSpace;
+    final AtomicBoolean taken = new AtomicBoolean();  // 被 select/take 拿走过了，还留在队列里的话就是过时的一项
 
     public PageInfo(int pgno, int freeSpace) {
         this.pgno = pgno;
@@ -7,7 +7,6 @@ import com.Hang.backend.common.SubArray;
 import com.Hang.backend.utils.Parser;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -72,7 +71,7 @@ public class BPlusTree {  // BPlusTree 类只需要存储根节点的 UID，就
         bootLock.lock();
         try{
             SubArray sa = bootDataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw,sa.start,sa.start+8));
+            return sa.raw.getLong(sa.start);
             // B+数根节点前8个字节是uid，看前面create，存B+树就是将bootUid这8个字节作为bootDataItem来存的
         }finally{
             bootLock.unlock();
@@ -104,7 +103,7 @@ public class BPlusTree {  // BPlusTree 类只需要存储根节点的 UID，就
             long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
             bootDataItem.before();
             SubArray diRaw = bootDataItem.data();
-            System.arraycopy(Parser.long2Byte(newRootUid),0,diRaw.raw,diRaw.start,8);
+            diRaw.raw.putLong(diRaw.start,newRootUid);
             bootDataItem.after(TransactionManagerImpl.SUPER_XID);
         }finally{
             bootLock.unlock();
@@ -4,10 +4,9 @@ package com.Hang.backend.IM;
 import com.Hang.backend.DM.dataItem.DataItem;
 import com.Hang.backend.TM.TransactionManagerImpl;
 import com.Hang.backend.common.SubArray;
-import com.Hang.backend.utils.Parser;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -69,9 +68,9 @@ public class Node {
 
     static void setRawIsLeaf(SubArray raw, boolean isLeaf) {
         if(isLeaf){
-            raw.raw[raw.start + IS_LEAF_OFFSET] = (byte)1;  // 1是叶子节点
+            raw.raw.put(raw.start + IS_LEAF_OFFSET, (byte)1);  // 1是叶子节点
         }else{
-            raw.raw[raw.start + IS_LEAF_OFFSET] = (byte)0;  // 0是非叶子节点
+            raw.raw.put(raw.start + IS_LEAF_OFFSET, (byte)0);  // 0是非叶子节点
         }
     }
 
@@ -79,27 +78,27 @@ public class Node {
     判断受否是叶子节点的raw
      */
     static boolean getRawIfLeaf(SubArray raw) {
-        return raw.raw[raw.start+IS_LEAF_OFFSET] == (byte)1;
+        return raw.raw.get(raw.start+IS_LEAF_OFFSET) == (byte)1;
     }
 
     /*
     将 B+ 树节点中存储的键数量（noKeys）写入节点的字节数组中，即将 noKeys 写入节点元数据区域的 [KeyNumber-2] 字段。
      */
     static void setRawNoKeys(SubArray raw, int noKeys) {  // 因为KeyNumber本来就2个字节，因此将int强转为2个字节
-        System.arraycopy(Parser.short2Byte((short)noKeys),0,raw.raw,raw.start+NO_KEYS_OFFSET,2);
+        raw.raw.putShort(raw.start+NO_KEYS_OFFSET,(short)noKeys);
     }
 
     static int getRawNoKeys(SubArray raw) {
-        return (int)Parser.parseShort(Arrays.copyOfRange(raw.raw,raw.start+NO_KEYS_OFFSET,raw.start+NO_KEYS_OFFSET+2));
+        return (int)raw.raw.getShort(raw.start+NO_KEYS_OFFSET);
     }
 
     // 设置当前 B+ 树节点的右兄弟节点（sibling）的 UID 值。
     static void setRawSibling(SubArray raw, long sibling){
-        System.arraycopy(Parser.long2Byte(sibling),0,raw.raw,raw.start+SIBLING_OFFSET,8);
+        raw.raw.putLong(raw.start+SIBLING_OFFSET,sibling);
     }
 
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw,raw.start+SIBLING_OFFSET, raw.start+SIBLING_OFFSET+8));
+        return raw.raw.getLong(raw.start+SIBLING_OFFSET);
     }
 
     /*
@@ -107,22 +106,22 @@ public class Node {
      */
     static void setRawKthSon(SubArray raw, long uid, int kth){
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);  // 每个 Son 是 8 字节（long），每个 Key 也是 8 字节（long）。因此每组 (Son, Key) 占用 16 字节。
-        System.arraycopy(Parser.long2Byte(uid),0,raw.raw,offset,8);
+        raw.raw.putLong(offset,uid);
     }
 
     static long getRawKthSon(SubArray raw, int kth){
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw,offset,offset+8));
+        return raw.raw.getLong(offset);
     }
 
     static void setRawKthKey(SubArray raw, long key, int kth){
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8;
-        System.arraycopy(Parser.long2Byte(key),0,raw.raw,offset,8);
+        raw.raw.putLong(offset,key);
     }
 
     static long getRawKthKey(SubArray raw, int kth){
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw,offset,offset+8));
+        return raw.raw.getLong(offset);
     }
     /*
     从一个 B+ 树节点 from 中的第 kth 个 (Son, Key) 开始，将后续所有的 (Son, Key) 对拷贝到另一个节点 to 中的开始位置（覆盖掉其已有数据）。
@@ -130,7 +129,7 @@ public class Node {
      */
     static void copyRawFromKth(SubArray from, SubArray to, int kth){
         int offset = from.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        System.arraycopy(from.raw,offset,to.raw,to.start+NODE_HEADER_SIZE,from.end - offset);
+        to.raw.put(to.start+NODE_HEADER_SIZE,from.raw,offset,from.end - offset);
     }
 
     /*
@@ -146,7 +145,7 @@ public class Node {
         int end = raw.start + NODE_SIZE - 1;
         // 从 end 开始往前遍历到 begin，为的是避免数据覆盖
         for(int i = end; i >= begin; i--){
-            raw.raw[i] = raw.raw[i - (2*8)];  // 按照字节为单位进行迁移，向后移动16字节（腾出一组 Son-Key 的空间）
+            raw.raw.put(i, raw.raw.get(i - (2*8)));  // 按照字节为单位进行迁移，向后移动16字节（腾出一组 Son-Key 的空间）
         }
     }
 
@@ -157,7 +156,7 @@ public class Node {
         int begin = raw.start + NODE_HEADER_SIZE + (kth+1) * (8 * 2);
         int end = raw.start + NODE_SIZE - 1;
         for(int i = end; i >= begin; i--){
-            raw.raw[i] = raw.raw[i - (2*8)];
+            raw.raw.put(i, raw.raw.get(i - (2*8)));
         }
     }
 
@@ -166,7 +165,7 @@ public class Node {
     用于 B+ 树在插入时根节点分裂后，新建根节点的情况。
      */
     static byte[] newRootRaw(long left, long right, long key){
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        SubArray raw = new SubArray(ByteBuffer.wrap(new byte[NODE_SIZE]), 0, NODE_SIZE);
         setRawIsLeaf(raw, false);
         setRawNoKeys(raw, 2);
         setRawSibling(raw,0);
@@ -175,18 +174,18 @@ public class Node {
         setRawKthSon(raw,right,1);
         setRawKthKey(raw,Long.MAX_VALUE,1);
 
-        return raw.raw;
+        return raw.raw.array();
     }
 
     /*
     这段代码的作用是用于初始化一个空的 B+ 树根节点（nil root），返回其原始二进制数据（byte[] 类型），可供存储或插入使用。
      */
     static byte[] newNilRootRaw(){
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        SubArray raw = new SubArray(ByteBuffer.wrap(new byte[NODE_SIZE]), 0, NODE_SIZE);
         setRawIsLeaf(raw, true);
         setRawNoKeys(raw, 0);
         setRawSibling(raw, 0);
-        return raw.raw;
+        return raw.raw.array();
     }
 
     static Node loadNode(BPlusTree bTree, long uid) throws Exception{
@@ -371,13 +370,13 @@ public class Node {
      */
     private SplitRes split() throws Exception{
         // 新建一个 SubArray（本质上是封装的一段字节数组），用于表示新分裂出来的节点的原始二进制数据。
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        SubArray nodeRaw = new SubArray(ByteBuffer.wrap(new byte[NODE_SIZE]), 0, NODE_SIZE);
         setRawIsLeaf(nodeRaw,getRawIfLeaf(raw));  // 将当前节点的“是否是叶子节点”属性复制到新节点中。说明：分裂后两个节点同属一类（都为叶子 or 都为内部节点）。
         setRawNoKeys(nodeRaw,BALANCE_NUMBER); // 设置新节点的 key 数量为 BALANCE_NUMBER。
         // BALANCE_NUMBER 是分裂后每个节点保留 key 的数量，B+ 树节点分裂一般按中间位置一分为二。
         setRawSibling(nodeRaw,getRawSibling(raw));  // 把当前节点的兄弟 UID 设置给新节点（把原来的“右兄弟”传给新节点）。
         copyRawFromKth(raw,nodeRaw,BALANCE_NUMBER); // 从当前节点的第 BALANCE_NUMBER 个 key 开始，复制一半 key/value 到新节点中。
-        long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
+        long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw.array());
         // 新节点的原始数据插入到底层数据管理模块 dm 中，返回其 UID（类似页号或偏移量）
         setRawNoKeys(raw,BALANCE_NUMBER); // 当前节点也保留一半数据（前半部分），把 key 数量设为 BALANCE_NUMBER。
         setRawSibling(raw,son);  // 当前节点的右兄弟设置为新分裂出来的 son 节点，实现 叶子节点之间的链接更新。
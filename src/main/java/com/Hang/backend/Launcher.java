@@ -2,6 +2,7 @@ package com.Hang.backend;
 
 
 import com.Hang.backend.DM.DataManager;
+import com.Hang.backend.DM.pageCache.PageCache;
 import com.Hang.backend.TBM.TableManager;
 import com.Hang.backend.TM.TransactionManager;
 import com.Hang.backend.VM.VersionManager;
@@ -33,37 +34,49 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("mmap", false, "-mmap (read and write the data file through a memory mapping)");
+        options.addOption("pagesize", true, "-pagesize 8KB (only for -create, 4KB ~ 64KB)");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options,args);
 
         if(cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), cmd.hasOption("mmap"));
             return;
         }
         if(cmd.hasOption("create")) {
-            createDB(cmd.getOptionValue("create"));
+            createDB(cmd.getOptionValue("create"), parsePageSize(cmd.getOptionValue("pagesize")));
             return;
         }
         System.out.println("Usage: launcher (open|create) DBPath");
     }
 
-    private static void createDB(String path) {
+    private static void createDB(String path, int pageSize) {
         TransactionManager tm = TransactionManager.create(path);
-        DataManager dm = DataManager.create(path, DEFALUT_MEM, tm);
+        DataManager dm = DataManager.create(path, DEFALUT_MEM, tm, false, pageSize);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager.create(path, vm, dm);
         tm.close();
         dm.close();
     }
 
-    private static void openDB(String path, long mem) {
+    private static void openDB(String path, long mem, boolean mmap) {
         TransactionManager tm = TransactionManager.open(path);
-        DataManager dm = DataManager.open(path, mem, tm);
+        DataManager dm = DataManager.open(path, mem, tm, mmap);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager tbm = TableManager.open(path, vm, dm);
         new Server(port, tbm).start();
     }
 
+    private static int parsePageSize(String sizeStr) {
+        if(sizeStr == null || "".equals(sizeStr)) {
+            return PageCache.DEFAULT_PAGE_SIZE;
+        }
+        if(!sizeStr.endsWith("KB")) {
+            Panic.panic(Error.InvalidPageSizeException);
+        }
+        return (int) (Long.parseLong(sizeStr.substring(0, sizeStr.length()-2))*KB);  // 是不是合法的页大小由 PageCache.create 检查
+    }
+
     private static long parseMem(String memStr) {
         if(memStr == null || "".equals(memStr)) {
             return DEFALUT_MEM;
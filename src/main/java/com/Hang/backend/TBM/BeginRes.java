@@ -1,11 +1,13 @@
 package com.Hang.backend.TBM;
 
+import com.Hang.backend.VM.Transaction;
+
 /*
 BeginRes 很可能是某个“开始操作”的返回结果（Begin Result 的缩写），比如：
 事务开始（begin transaction）时的返回信息
 某个会话或操作的初始化响应
  */
 public class BeginRes {
-    public long xid;
+    public Transaction transaction;  // 事务句柄，之后的语句直接拿它去调 VM，不用再按 xid 查
     public byte[] result;
 }
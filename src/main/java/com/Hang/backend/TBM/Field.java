@@ -2,6 +2,7 @@ package com.Hang.backend.TBM;
 
 import com.Hang.backend.IM.BPlusTree;
 import com.Hang.backend.TM.TransactionManagerImpl;
+import com.Hang.backend.VM.Transaction;
 import com.Hang.backend.parser.statement.SingleExpression;
 import com.Hang.backend.utils.Panic;
 import com.Hang.backend.utils.ParseStringRes;
@@ -75,7 +76,7 @@ public class Field {
     在创建新表时，创建字段 Field 对象，并将字段元信息持久化（写入磁盘）。
     如果字段开启了索引，还会创建对应的 B+ 树。
      */
-    public static Field createField(Table tb, long xid, String fieldName, String fieldType, boolean indexed) throws Exception {
+    public static Field createField(Table tb, Transaction t, String fieldName, String fieldType, boolean indexed) throws Exception {
         typeCheck(fieldType);
         Field f = new Field(tb, fieldName, fieldType, 0);
         if(indexed) {
@@ -84,15 +85,15 @@ public class Field {
             f.index = index;
             f.bt = bt;
         }
-        f.persistSelf(xid);
+        f.persistSelf(t);
         return f;
     }
 
-    private void persistSelf(long xid) throws Exception{
+    private void persistSelf(Transaction t) throws Exception{
         byte[] nameRaw = Parser.string2Byte(fieldName);
         byte[] typeRaw = Parser.string2Byte(fieldType);
         byte[] indexRaw = Parser.long2Byte(index);
-        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw));
+        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(t, Bytes.concat(nameRaw, typeRaw, indexRaw));
     }
 
     private static void typeCheck(String fieldType) throws Exception{
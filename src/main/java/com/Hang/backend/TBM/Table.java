@@ -1,6 +1,7 @@
 package com.Hang.backend.TBM;
 
 import com.Hang.backend.TM.TransactionManagerImpl;
+import com.Hang.backend.VM.Transaction;
 import com.Hang.backend.parser.statement.*;
 import com.Hang.backend.utils.Panic;
 import com.Hang.backend.utils.ParseStringRes;
@@ -50,7 +51,7 @@ public class Table {
     处理索引字段
     调用 persistSelf() 把元数据持久化
      */
-    public static Table createTable(TableManager tbm, long nextUid, long xid, Create create) throws Exception{
+    public static Table createTable(TableManager tbm, long nextUid, Transaction t, Create create) throws Exception{
         Table tb = new Table(tbm, create.tableName, nextUid);  // 创建表对象（还未持久化）
         for (int i = 0; i < create.fieldName.length; i++) {  // 对一个表中的所有字段进行遍历
             String fieldName = create.fieldName[i];
@@ -62,9 +63,9 @@ public class Table {
                     break;
                 }
             }
-            tb.fields.add(Field.createField(tb,xid,fieldName,fieldType,indexed)); // 创建字段对象，并添加进表
+            tb.fields.add(Field.createField(tb,t,fieldName,fieldType,indexed)); // 创建字段对象，并添加进表
         }
-        return tb.persistSelf(xid);  // 持久化整个表结构
+        return tb.persistSelf(t);  // 持久化整个表结构
     }
 
 
@@ -103,17 +104,17 @@ public class Table {
      * 用于将 Table 对象持久化保存到磁盘
      * 将Table对象持久化的磁盘需要将表名、下一张表的UID，以及将每一个字段的uid concat起来然后一起Bytes.concat起来存到磁盘里
      */
-    private Table persistSelf(long xid) throws Exception {
+    private Table persistSelf(Transaction t) throws Exception {
         byte[] nameRaw = Parser.string2Byte(name);  // 把表名（如 "user"）转换成字节数组，用于存入磁盘。
         byte[] nextRaw = Parser.long2Byte(nextUid);  // 把当前表的 nextUid（指向“下一张表”的 UID）转成字节数组，作为元数据的一部分写入磁盘。
         byte[] fieldRaw = new byte[0];
         for(Field field : fields) {  // 把当前表的所有字段的 UID 逐个转成字节，并拼接成一个整体字节流。
             fieldRaw = Bytes.concat(fieldRaw, Parser.long2Byte(field.uid));
         }
-        uid = ((TableManagerImpl)tbm).vm.insert(xid, Bytes.concat(nameRaw, nextRaw, fieldRaw));
+        uid = ((TableManagerImpl)tbm).vm.insert(t, Bytes.concat(nameRaw, nextRaw, fieldRaw));
         return this;
     }
-    public int update(long xid, Update update) throws Exception {
+    public int update(Transaction t, Update update) throws Exception {
         List<Long> uids = parseWhere(update.where);
         Field fd = null;
         for (Field f : fields) {
@@ -128,15 +129,15 @@ public class Table {
         Object value = fd.string2Value(update.value);
         int count = 0;
         for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
+            byte[] raw = ((TableManagerImpl)tbm).vm.read(t, uid);
             if(raw == null) continue;
 
-            ((TableManagerImpl)tbm).vm.delete(xid, uid);
+            ((TableManagerImpl)tbm).vm.delete(t, uid);
 
             Map<String, Object> entry = parseEntry(raw);
             entry.put(fd.fieldName, value);
             raw = entry2Raw(entry);
-            long uuid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
+            long uuid = ((TableManagerImpl)tbm).vm.insert(t, raw);
 
             count ++;
 
@@ -149,11 +150,11 @@ public class Table {
         return count;
     }
 
-    public String read(long xid, Select read) throws Exception {
+    public String read(Transaction t, Select read) throws Exception {
         List<Long> uids = parseWhere(read.where);
         StringBuilder sb = new StringBuilder();
         for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
+            byte[] raw = ((TableManagerImpl)tbm).vm.read(t, uid);
             if(raw == null) continue;
             Map<String, Object> entry = parseEntry(raw);
             sb.append(printEntry(entry)).append("\n");
@@ -161,10 +162,10 @@ public class Table {
         return sb.toString();
     }
 
-    public void insert(long xid, Insert insert) throws Exception {
+    public void insert(Transaction t, Insert insert) throws Exception {
         Map<String, Object> entry = string2Entry(insert.values);
         byte[] raw = entry2Raw(entry);
-        long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
+        long uid = ((TableManagerImpl)tbm).vm.insert(t, raw);
         for (Field field : fields) {
             if(field.isIndexed()) {
                 field.insert(entry.get(field.fieldName), uid);
@@ -1,6 +1,7 @@
 package com.Hang.backend.TBM;
 
 import com.Hang.backend.DM.DataManager;
+import com.Hang.backend.VM.Transaction;
 import com.Hang.backend.VM.VersionManager;
 import com.Hang.backend.parser.statement.*;
 import com.Hang.backend.utils.Parser;
@@ -14,17 +15,17 @@ import java.io.IOException;
  * TableManager 是数据库中“表级别操作”的抽象接口，定义了所有对数据表的操作行为和事务控制方法，供系统其他模块调用。
  */
 public interface TableManager {
-    BeginRes begin(Begin begin);  // 开启一个新事务，返回事务 ID（xid） 和其它初始化信息
-    byte[] commit(long xid) throws Exception; // 提交指定事务
-    byte[] abort(long xid); // 回滚（撤销）指定事务
+    BeginRes begin(Begin begin);  // 开启一个新事务，返回事务句柄和其它初始化信息
+    byte[] commit(Transaction t) throws Exception; // 提交指定事务
+    byte[] abort(Transaction t); // 回滚（撤销）指定事务
 
-    byte[] show(long xid);  // 显示当前系统中有哪些表（元数据查询）
-    byte[] create(long xid, Create create) throws Exception;  // 在指定事务中创建一张新表（建表）
+    byte[] show(Transaction t);  // 显示当前系统中有哪些表（元数据查询）
+    byte[] create(Transaction t, Create create) throws Exception;  // 在指定事务中创建一张新表（建表）
 
-    byte[] insert(long xid, Insert insert) throws Exception;  // 向表中插入记录
-    byte[] read(long xid, Select select) throws Exception;  // 从表中读取记录
-    byte[] update(long xid, Update update) throws Exception;  // 更新表中某些记录
-    byte[] delete(long xid, Delete delete) throws Exception;  // 删除表，这里是表管理
+    byte[] insert(Transaction t, Insert insert) throws Exception;  // 向表中插入记录
+    byte[] read(Transaction t, Select select) throws Exception;  // 从表中读取记录
+    byte[] update(Transaction t, Update update) throws Exception;  // 更新表中某些记录
+    byte[] delete(Transaction t, Delete delete) throws Exception;  // 删除表，这里是表管理
 
     // 工厂方法（用于构造 TableManager 实例）
     public static TableManager create(String path, VersionManager vm, DataManager dm){
@@ -2,6 +2,7 @@ package com.Hang.backend.TBM;
 
 import com.Hang.backend.DM.DataManager;
 import com.Hang.backend.TM.TransactionManagerImpl;
+import com.Hang.backend.VM.Transaction;
 import com.Hang.backend.VM.VersionManager;
 import com.Hang.backend.parser.statement.*;
 import com.Hang.backend.utils.Parser;
@@ -58,36 +59,36 @@ public class TableManagerImpl implements TableManager {
     public BeginRes begin(Begin begin) {
         BeginRes res = new BeginRes();
         int level = begin.isRepeatableRead ? 1 : 0;
-        res.xid = vm.begin(level);
+        res.transaction = vm.beginTransaction(level);
         res.result = "begin".getBytes();
         return res;
     }
 
     @Override
-    public byte[] commit(long xid) throws Exception {
-        vm.commit(xid);
+    public byte[] commit(Transaction t) throws Exception {
+        vm.commit(t);
         return "commit".getBytes();
     }
 
     @Override
-    public byte[] abort(long xid) {
-        vm.abort(xid);
+    public byte[] abort(Transaction t) {
+        vm.abort(t);
         return "abort".getBytes();
     }
 
     @Override
-    public byte[] show(long xid) {
+    public byte[] show(Transaction t) {
         lock.lock();
         try{
             StringBuilder sb = new StringBuilder();
             for(Table tb : tableCache.values()){
                 sb.append(tb.toString()).append("\n");
             }
-            List<Table> t = xidTableCache.get(xid);
-            if(t == null){
+            List<Table> created = xidTableCache.get(t.xid);
+            if(created == null){
                 return "\n".getBytes();
             }
-            for(Table tb : t){
+            for(Table tb : created){
                 sb.append(tb.toString()).append("\n");
             }
             return sb.toString().getBytes();
@@ -97,19 +98,19 @@ public class TableManagerImpl implements TableManager {
     }
 
     @Override
-    public byte[] create(long xid, Create create) throws Exception {
+    public byte[] create(Transaction t, Create create) throws Exception {
         lock.lock();
         try {
             if(tableCache.containsKey(create.tableName)) {
                 throw Error.DuplicatedTableException;
             }
-            Table table = Table.createTable(this, firstTableUid(), xid, create);
+            Table table = Table.createTable(this, firstTableUid(), t, create);
             updateFirstTableUid(table.uid);
             tableCache.put(create.tableName, table);
-            if(!xidTableCache.containsKey(xid)) {
-                xidTableCache.put(xid, new ArrayList<>());
+            if(!xidTableCache.containsKey(t.xid)) {
+                xidTableCache.put(t.xid, new ArrayList<>());
             }
-            xidTableCache.get(xid).add(table);
+            xidTableCache.get(t.xid).add(table);
             return ("create " + create.tableName).getBytes();
         } finally {
             lock.unlock();
@@ -117,29 +118,29 @@ public class TableManagerImpl implements TableManager {
     }
 
     @Override
-    public byte[] insert(long xid, Insert insert) throws Exception {
+    public byte[] insert(Transaction t, Insert insert) throws Exception {
         lock.lock();
         Table table = tableCache.get(insert.tableName);
         lock.unlock();
         if(table == null) {
             throw Error.TableNotFoundException;
         }
-        table.insert(xid, insert);
+        table.insert(t, insert);
         return "insert".getBytes();
     }
 
     @Override
-    public byte[] read(long xid, Select select) throws Exception {
+    public byte[] read(Transaction t, Select select) throws Exception {
         return new byte[0];
     }
 
     @Override
-    public byte[] update(long xid, Update update) throws Exception {
+    public byte[] update(Transaction t, Update update) throws Exception {
         return new byte[0];
     }
 
     @Override
-    public byte[] delete(long xid, Delete delete) throws Exception {
+    public byte[] delete(Transaction t, Delete delete) throws Exception {
         return new byte[0];
     }
 
@@ -17,6 +17,7 @@ public interface TransactionManager {
     boolean isActive(long xid);
     boolean isCommitted(long xid);
     boolean isAborted(long xid);
+    void sync();  // 把已经写进文件的状态（还没落盘的 abort）都刷下去
     void close();
 
 
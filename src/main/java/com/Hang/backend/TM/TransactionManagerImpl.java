@@ -8,20 +8,33 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * XID文件是用来首先记录事务的数量的，然后就是记录每一个事务所处的一个状态
  * 对 XID 文件进行校验，以保证这是一个合法的 XID 文件。
- * 校验的方式也很简单，通过文件头的 8 字节数字反推文件的理论长度，与文件的实际长度做对比。
- * 如果不同则认为 XID 文件不合法。对于校验没有通过的，会直接通过 panic 方法，强制停机。
+ * 校验的方式也很简单，文件头的 8 字节数字不能比文件能放下的事务数还大，对于校验没有通过的，会直接通过 panic 方法，强制停机。
  * 在一些基础模块中出现错误都会如此处理，无法恢复的错误只能直接停机。
+ *
+ * 查询事务状态只查内存里的状态表（XidStatusTable），启动时从 XID 文件加载一遍
+ *
+ * 落盘协议（begin 不等落盘，提交是组提交）：
+ * 文件头记的不是已经开始的事务数，而是预留到的 XID：XID 一次预留 XID_RESERVE 个，
+ * 预留时先把文件撑到能放下这些事务的状态（新撑出来的都是 0，也就是 ACTIVE）并 force，再写文件头，再 force 一次，
+ * 文件头落盘时它指到的范围一定已经在文件里了。
+ * begin 只是在预留好的范围里把计数器加一，不写文件；崩溃后重启从文件头记的 XID 往后分配，
+ * 预留了没用上的和开始了没结束的事务在文件里都是 ACTIVE，恢复时当作未完成的事务撤销，XID 也不会被重复使用。
+ * commit 写状态字节后等落盘，同一时间只有一个线程 force，这期间别的提交写的状态攒到下一次 force 一起落盘；
+ * abort 只写不等：abort 没落盘就崩溃的话这个事务在文件里还是 ACTIVE，恢复时照样会被撤销，结果是一样的。
+ * 前提是它的日志还在，所以检查点在截日志之前要先调用 sync，把已经结束的事务的状态都刷下去。
+ * 状态表在状态写进文件以后才改（commit 要等落盘以后），别人看到一个事务提交了，它的提交就已经落盘了
  */
 
 public class TransactionManagerImpl implements TransactionManager {
 
-    // XID文件头长度  这个是用来表示XID文件管理事务的数量
+    // XID文件头长度  这个是用来表示预留到的 XID（见类注释）
     static final int LEN_XID_HEADER_LENGTH = 8;
     // 每个事务的占用长度  这是这个XID文件中每个事务的状态长度（其实就是这个事务的长度）
     private static final int XID_FILE_SIZE = 1;
@@ -38,8 +51,19 @@ public class TransactionManagerImpl implements TransactionManager {
 
     private RandomAccessFile file;
     private FileChannel fc;
-    private long xidCounter;  // 这个表示xid文件管理的事务总数(就是已经开启的事务数量，每开启一个就会在xid文件中新建一个它的事务状态信息，然后总数+1)
+    private long xidCounter;  // 已经分配出去的最大的 XID
+    private long reserved;  // 文件头里记的、已经落盘的预留到的 XID，xidCounter 不能超过它
     private Lock counterLock;
+    static final int XID_RESERVE = 1 << 12;  // 一次预留多少个 XID
+
+    // 组提交，由 flushLock 保护
+    private final Lock flushLock = new ReentrantLock();
+    private final Condition flushed = flushLock.newCondition();  // 一次 force 完成后唤醒等待的提交
+    private long written;  // 已经写进文件的状态的个数
+    private long durable;  // 序号 <= durable 的状态都已经 force 过了
+    private boolean flushing;  // 是否有线程正在 force
+    private final XidStatusTable statusTable = new XidStatusTable();
+    private static final int LOAD_BUFFER_SIZE = 1 << 20;  // 加载状态表时一次读 1MB
 
     // 构造器--没有权限修饰符表示是私有的，只能在当前包（package）中使用这个构造器创建对象。
     TransactionManagerImpl(RandomAccessFile raf, FileChannel fc) {
@@ -47,14 +71,14 @@ public class TransactionManagerImpl implements TransactionManager {
         this.fc = fc;
         counterLock = new ReentrantLock();
         checkXIDCounter();  // 只要创建了这个实现类对象，就会自动去检测这个XID文件是否合法
+        loadStatusTable();
     }
 
     /**
      * 检查XID文件是否合法
-     * 读取XID_FILE_HEADER中的xidCounter，根据它计算文件的理论长度，对比实际长度
-     * @return
+     * 读取XID_FILE_HEADER中预留到的 XID，文件长度至少要能放下这么多事务的状态。
+     * 预留时先撑文件并落盘再写文件头，崩溃时可能文件撑出去了文件头还是旧的，多出来的部分都是没分配过的 XID，截掉
      */
-
     private void checkXIDCounter() {
         long fileLen = 0;
         try{
@@ -70,18 +94,45 @@ public class TransactionManagerImpl implements TransactionManager {
         ByteBuffer buf = ByteBuffer.allocate(LEN_XID_HEADER_LENGTH);
 
         try{
-            fc.position(0);
-            fc.read(buf);
+            fc.read(buf, 0);
         }catch(Exception e){
             Panic.panic(e);
         }
-        // 将ByteBuffer的内容解析为长整型，作为xidCounter(+1后就是管理事务的总数量)
-        this.xidCounter = Parser.parseLong(buf.array());
-        // 计算xidCounter+1对应的XID位置  就是最后一个事务的位置
-        long end = getXidPosition(xidCounter+1);
-        if(end != fileLen){
+        // 将ByteBuffer的内容解析为长整型，就是预留到的 XID，重启后从它后面开始分配
+        this.reserved = Parser.parseLong(buf.array());
+        this.xidCounter = reserved;
+        long end = getXidPosition(reserved+1);
+        if(end > fileLen){
             Panic.panic(Error.BadXIDFileException);
         }
+        if(end < fileLen){
+            try{
+                file.setLength(end);
+            }catch (Exception e){
+                Panic.panic(e);
+            }
+        }
+    }
+
+    // 把 XID 文件里所有事务的状态读进状态表，超级事务在文件里没有位置，直接记成已提交
+    private void loadStatusTable() {
+        statusTable.set(SUPER_XID, FIELD_TRAN_COMMITED);
+        ByteBuffer buf = ByteBuffer.allocate(LOAD_BUFFER_SIZE);
+        long xid = 1;
+        try{
+            while(xid <= xidCounter){
+                buf.clear();
+                buf.limit((int) Math.min(LOAD_BUFFER_SIZE, xidCounter - xid + 1));
+                while(buf.hasRemaining() && fc.read(buf, getXidPosition(xid) + buf.position()) >= 0){
+                }
+                buf.flip();
+                while(buf.hasRemaining()){
+                    statusTable.set(xid++, buf.get());
+                }
+            }
+        }catch (Exception e){
+            Panic.panic(e);
+        }
     }
 
     // 根据事务xid获取这个事务在xid文件中的位置
@@ -90,58 +141,70 @@ public class TransactionManagerImpl implements TransactionManager {
     }
 
 
-    // 更新xid事务状态为status
-    private void updateXID(long xid, byte status) {
+    // 把xid事务的状态写进文件，不 force，返回这次写的序号，用 awaitDurable 等它落盘
+    private long writeXID(long xid, byte status) {
         long offset = getXidPosition(xid); // 这就是这个事务在xid文件中的位置
         // 然后只需要替换掉这个长度为1的事务状态就可以了
-        byte[] tmp = new byte[XID_FILE_SIZE];
-        tmp[0] = status;
-        ByteBuffer buf = ByteBuffer.wrap(tmp);
+        ByteBuffer buf = ByteBuffer.wrap(new byte[]{status});
         try{
-            fc.position(offset);
-            fc.write(buf);
+            fc.write(buf, offset);  // 带位置的写，不动通道的 position，并发提交时不会写错位置
         }catch (Exception e){
             Panic.panic(e);
         }
-
+        flushLock.lock();
         try{
-            fc.force(false);  // 强制写入磁盘
-        }catch (Exception e){
-            Panic.panic(e);  // 这是输出异常的栈信息以及错误推出程序
+            return ++written;
+        }finally{
+            flushLock.unlock();
         }
     }
 
-    // 将XID+1,同时更新XID Header
-    private void incrXIDCounter() {
-        xidCounter++; // 然后需要给xid文件中的头部进行更新
-        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
+    // 等序号 <= seq 的状态都落盘：没人在 force 就自己来，把别人已经写进去的状态一起刷下去
+    private void awaitDurable(long seq) {
+        flushLock.lock();
         try{
-            fc.position(0);
-            fc.write(buf);
-        }catch (Exception e){
-            Panic.panic(e);
+            while(durable < seq){
+                if(flushing){
+                    flushed.awaitUninterruptibly();  // 别人正在刷，等这一次刷完再看自己的有没有落盘
+                    continue;
+                }
+                flushing = true;
+                long target = written;
+                flushLock.unlock();  // force 的时候不拿锁，别的提交可以继续写状态，攒到下一次
+                try{
+                    fc.force(false);
+                }catch (Exception e){
+                    Panic.panic(e);
+                }finally{
+                    flushLock.lock();
+                    durable = target;
+                    flushing = false;
+                    flushed.signalAll();
+                }
+            }
+        }finally{
+            flushLock.unlock();
         }
-        // 然后在写到磁盘里
+    }
+
+    // 再预留 XID_RESERVE 个 XID：撑大文件（新的状态都是 ACTIVE）并落盘，再写文件头落盘。调用方持有 counterLock
+    private void reserveXID() {
+        long end = reserved + XID_RESERVE;
         try{
-            fc.force(false); // false表示隐式写磁盘，true表示的事显式的
-        } catch (IOException e) {
+            file.setLength(getXidPosition(end+1));
+            fc.force(true);  // 文件长度是元数据，要先落盘，文件头才能指过去
+            fc.write(ByteBuffer.wrap(Parser.long2Byte(end)), 0);
+            fc.force(false);
+        }catch (Exception e){
             Panic.panic(e);
         }
+        reserved = end;
     }
 
     // 定义一个方法，接受一个事务ID(xid)和一个状态(status)作为参数
-    // 检查一个XID位置事物的状态是否和status一致
+    // 检查一个XID位置事物的状态是否和status一致，只查内存里的状态表
     private boolean checkXID(long xid, byte status){
-        long offset = getXidPosition(xid);
-        ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FILE_SIZE]);  // 每个XID_FILE_SIZE就为1
-//        ByteBuffer buf = ByteBuffer.allocate(XID_FILE_SIZE);  // 这样也可以
-        try{
-            fc.position(offset);
-            fc.read(buf);
-        }catch (Exception e){
-            Panic.panic(e);
-        }
-        return buf.array()[0] == status;
+        return statusTable.get(xid) == status;
     }
 
     // 开始一个事务，并返回XID
@@ -150,12 +213,11 @@ public class TransactionManagerImpl implements TransactionManager {
         // 锁定计数器，防止并发问题  计数器就是xidCounter，每开始一个新的事务，就+1
         counterLock.lock();
         try{
-            long xid = xidCounter+1;  // 因为是逐个往后面加的，因此现在的数字+1就是此刻的事务id
-            // 调用updateXID方法，将新的事务ID和事务状态（这里是活动状态）写入到XID文件中
-            updateXID(xid, FIELD_TRAN_ACTIVE);
-            // 没开启一个新事物，就需要更新xid文件的信息，比如header数要+1
-            incrXIDCounter();
-            return xid;
+            if(xidCounter == reserved){
+                reserveXID();  // 预留的用完了才落一次盘
+            }
+            // 预留出来的 XID 在文件和状态表里都已经是 ACTIVE 了，不用再写
+            return ++xidCounter;
         }finally {
             // 释放锁
             counterLock.unlock();
@@ -164,12 +226,27 @@ public class TransactionManagerImpl implements TransactionManager {
 
     @Override
     public void commit(long xid) {
-        updateXID(xid, FIELD_TRAN_COMMITED);  // 只要是事务都会在头部数量中
+        awaitDurable(writeXID(xid, FIELD_TRAN_COMMITED));  // 和同时提交的事务一起落盘
+        statusTable.set(xid, FIELD_TRAN_COMMITED);
     }
 
     @Override
     public void abort(long xid) {
-        updateXID(xid, FIELD_TRAN_ABORTED);
+        writeXID(xid, FIELD_TRAN_ABORTED);  // 不等落盘，跟着下一次提交一起刷下去
+        statusTable.set(xid, FIELD_TRAN_ABORTED);
+    }
+
+    // 调用之前已经写进文件的状态都落盘以后才返回
+    @Override
+    public void sync() {
+        long seq;
+        flushLock.lock();
+        try{
+            seq = written;
+        }finally{
+            flushLock.unlock();
+        }
+        awaitDurable(seq);
     }
 
     @Override
@@ -190,6 +267,7 @@ public class TransactionManagerImpl implements TransactionManager {
     @Override
     public void close() {  // 这是用来关闭文件通道和文件的
         try {
+            fc.force(false);  // 还没落盘的 abort
             file.close();
             fc.close();
         } catch (IOException e) {
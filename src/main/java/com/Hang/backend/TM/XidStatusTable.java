@@ -0,0 +1,65 @@
+package com.Hang.backend.TM;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 内存里的事务状态表，是 XID 文件的副本：isActive/isCommitted/isAborted 只查这张表，不再每次去读 XID 文件。
+ *
+ * 每个事务的状态占 2 位（状态的取值见 TransactionManagerImpl，都小于 4），一个 long 放 32 个事务。
+ * 按 CHUNK_XIDS 个事务一块分块存放，块是 AtomicLongArray，改一个事务的状态就是对所在的 long 做一次 CAS；
+ * 块数组只增不减，扩容时整个换掉，读的时候不加锁。还没分配到的事务的状态都是 0，也就是 ACTIVE，和 XID 文件一致
+ */
+class XidStatusTable {
+    private static final int BITS = 2;
+    private static final int PER_LONG = Long.SIZE / BITS;
+    private static final long MASK = (1L << BITS) - 1;
+    static final int CHUNK_XIDS = 1 << 16;  // 一块管 65536 个事务，占 16KB
+    private static final int CHUNK_LONGS = CHUNK_XIDS / PER_LONG;
+
+    private volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+
+    byte get(long xid){
+        AtomicLongArray[] cs = chunks;
+        long c = xid / CHUNK_XIDS;
+        if(c >= cs.length){
+            return 0;
+        }
+        int i = (int) (xid % CHUNK_XIDS);
+        long word = cs[(int) c].get(i / PER_LONG);
+        return (byte) ((word >>> ((i % PER_LONG) * BITS)) & MASK);
+    }
+
+    void set(long xid, byte status){
+        AtomicLongArray chunk = chunk((int) (xid / CHUNK_XIDS));
+        int i = (int) (xid % CHUNK_XIDS);
+        int idx = i / PER_LONG;
+        int shift = (i % PER_LONG) * BITS;
+        while(true){
+            long old = chunk.get(idx);
+            long word = (old & ~(MASK << shift)) | ((long) status << shift);
+            if(chunk.compareAndSet(idx, old, word)){
+                return;
+            }
+        }
+    }
+
+    private AtomicLongArray chunk(int c){
+        AtomicLongArray[] cs = chunks;
+        if(c < cs.length){
+            return cs[c];
+        }
+        synchronized (this){
+            cs = chunks;
+            if(c >= cs.length){
+                AtomicLongArray[] grown = Arrays.copyOf(cs, Math.max(c + 1, cs.length * 2));
+                for(int k = cs.length; k < grown.length; k++){
+                    grown[k] = new AtomicLongArray(CHUNK_LONGS);
+                }
+                chunks = grown;
+                cs = grown;
+            }
+            return cs[c];
+        }
+    }
+}
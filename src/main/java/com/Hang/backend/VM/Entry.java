@@ -1,11 +1,13 @@
 package com.Hang.backend.VM;
 
 import com.Hang.backend.DM.dataItem.DataItem;
+import com.Hang.backend.TM.TransactionManager;
+import com.Hang.backend.TM.TransactionManagerImpl;
 import com.Hang.backend.common.SubArray;
 import com.Hang.backend.utils.Parser;
 import com.google.common.primitives.Bytes;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
  * 对底层 DataItem（数据页中真实数据）进行包装，加入事务控制字段（XMIN、XMAX）以支持 MVCC 多版本并发控制。
@@ -26,6 +28,13 @@ import java.util.Arrays;
  *     若为 0 表示尚未被删除。
  *
  * 每个entry是对每个数据项DataItem来说的，每个DataItem就对应一条记录，就是一个insert或者update这样子
+ *
+ * 提示位（hint bits）：XMIN、XMAX 的最高字节（xid 用不到，老数据里都是 0）记着这个事务已经提交（HINT_COMMITTED）还是回滚了（HINT_ABORTED），
+ * 可见性判断第一次从 TM 看到最终状态时顺手记下，以后再判断就不用问 TM 了。
+ * 提示位不写日志，也不把页标脏，页因为别的修改刷盘时才跟着落盘，丢了只是下次再问一次 TM。这样是安全的：
+ * 提交在 TM 落盘以后才看得到，记下的提交不会被崩溃推翻；回滚不等落盘，崩溃后它会被当成没结束的事务撤销，
+ * 撤销插入会让记录失效，撤销删除会把 XMAX 连同它的提示位一起恢复成删除前的样子，记下的回滚不会留下来误导别人。
+ * XMAX 被改写（删除）时提示位跟着整个字段一起被覆盖掉
  */
 
 public class Entry {
@@ -33,6 +42,10 @@ public class Entry {
     private static final int OF_XMAX = OF_XMIN + 8;
     private static final int OF_DATA = OF_XMAX + 8;
 
+    private static final byte HINT_COMMITTED = 1;  // XMIN/XMAX 最高字节里的提示位
+    private static final byte HINT_ABORTED = 2;
+    private static final long XID_MASK = (1L << 56) - 1;  // 去掉提示位就是 xid
+
     /*
     xmin（8字节 long 类型）代表插入该记录的事务 ID。
     用于判断：这个记录是谁插入的？它是否已经被提交？
@@ -73,6 +86,15 @@ public class Entry {
         return newEntry(vm,di,uid);
     }
 
+    // raw 的 offset 下标开始是一个 Entry，DM 压缩页时问 VM 版本死没死（见 VersionManagerImpl.isDead），直接在页上解析
+    public static long parseXmin(ByteBuffer raw, int offset){
+        return raw.getLong(offset+OF_XMIN) & XID_MASK;
+    }
+
+    public static long parseXmax(ByteBuffer raw, int offset){
+        return raw.getLong(offset+OF_XMAX) & XID_MASK;
+    }
+
     /*
     这个方法包装成entryraw，格式：[XMIN] [XMAX] [data]
      */
@@ -98,7 +120,7 @@ public class Entry {
         try{
             SubArray sa = dataItem.data();
             byte[] data = new byte[sa.end - sa.start - OF_DATA];
-            System.arraycopy(sa.raw,sa.start+OF_DATA,data,0,data.length);
+            sa.raw.get(sa.start+OF_DATA,data);
             return data;
         }finally{
             dataItem.rUnlock();
@@ -116,7 +138,7 @@ public class Entry {
         dataItem.rLock();
         try{
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw,sa.start+OF_XMIN,sa.start+OF_XMAX));
+            return sa.raw.getLong(sa.start+OF_XMIN) & XID_MASK;  // 每次可见性判断都要读，直接在页上解析，不拷贝
         }finally{
             dataItem.rUnlock();
         }
@@ -126,22 +148,85 @@ public class Entry {
         dataItem.rLock();
         try{
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw,sa.start+OF_XMAX,sa.start+OF_DATA));
+            return sa.raw.getLong(sa.start+OF_XMAX) & XID_MASK;
         }finally{
             dataItem.rUnlock();
         }
     }
 
+    /*
+    下面几个给可见性判断用，调用方持有 rLock()：一次判断里 XMIN、XMAX 和提示位都在同一把读锁里读，只拿一次锁
+     */
+    public void rLock(){
+        dataItem.rLock();
+    }
+
+    public void rUnlock(){
+        dataItem.rUnlock();
+    }
+
+    public long xmin(){
+        SubArray sa = dataItem.data();
+        return sa.raw.getLong(sa.start+OF_XMIN) & XID_MASK;
+    }
+
+    public long xmax(){
+        SubArray sa = dataItem.data();
+        return sa.raw.getLong(sa.start+OF_XMAX) & XID_MASK;
+    }
+
+    // 插入者是否已经提交
+    public boolean isXminCommitted(TransactionManager tm){
+        return isCommitted(tm, OF_XMIN);
+    }
+
+    // 删除者是否已经提交
+    public boolean isXmaxCommitted(TransactionManager tm){
+        return isCommitted(tm, OF_XMAX);
+    }
+
+    /*
+    先看 of 处那个字段的提示位，没有提示才问 TM，TM 里已经是最终状态就记下提示。
+    提示位在读锁下写：改 XMAX 的 before() 拿的是写锁，互斥；同时读的线程写进去的是同一个值，谁写都一样
+     */
+    private boolean isCommitted(TransactionManager tm, int of){
+        SubArray sa = dataItem.data();
+        int pos = sa.start + of;
+        byte hint = sa.raw.get(pos);
+        if(hint == HINT_COMMITTED){
+            return true;
+        }else if(hint == HINT_ABORTED){
+            return false;
+        }
+        long xid = sa.raw.getLong(pos);
+        if(tm.isCommitted(xid)){
+            if(xid != TransactionManagerImpl.SUPER_XID){
+                sa.raw.put(pos, HINT_COMMITTED);
+            }
+            return true;
+        }
+        if(tm.isAborted(xid)){
+            sa.raw.put(pos, HINT_ABORTED);
+        }
+        return false;
+    }
+
     /*
     将当前事务 ID（xid）写入到该 Entry 的 XMAX 字段中，表示这条记录被该事务删除了。
      */
     public void setXmax(long xid){
+        boolean written = false;
         dataItem.before();
         try{
             SubArray sa = dataItem.data();
-            System.arraycopy(Parser.long2Byte(xid),0,sa.raw,sa.start+OF_XMAX,8);
+            sa.raw.putLong(sa.start+OF_XMAX,xid);
+            written = true;
         }finally{
-            dataItem.rUnlock();
+            if(written){
+                dataItem.after(xid);  // 写日志，删除才能被恢复重做；同时放开 before() 拿的锁
+            }else{
+                dataItem.unBefore();
+            }
         }
     }
 
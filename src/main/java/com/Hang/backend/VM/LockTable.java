@@ -1,9 +1,15 @@
 package com.Hang.backend.VM;
 
 
+import com.Hang.backend.common.LongIntMap;
+import com.Hang.backend.common.LongLongMap;
+import com.Hang.backend.common.LongObjectMap;
+import com.Hang.backend.common.LongSet;
 import com.Hang.common.Error;
 
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -14,31 +20,33 @@ import java.util.concurrent.locks.ReentrantLock;
  *
  * XID：事务ID
  * UID：资源 ID（通常是数据库中的某条记录）
+ *
+ * 这些表的键都是 xid/uid，用 common 包里的原始类型哈希表，加锁、解锁的时候不用再装箱 Long
  */
 public class LockTable {
-    private Map<Long, List<Long>> x2u;  // 记录某个事务（XID）已经成功获得锁的资源（UID）列表。
+    private LongObjectMap<LongSet> x2u;  // 记录某个事务（XID）已经成功获得锁的资源（UID）集合。
     /*
     如果事务 T10 成功获得了 UID 5 和 UID 8 的锁：
-     x2u = {10L: [5L, 8L]}
+     x2u = {10L: {5L, 8L}}
      */
-    private Map<Long, Long> u2x;  // 表示某个资源（UID）当前被哪个事务（XID）持有（加锁了）。
+    private LongLongMap u2x;  // 表示某个资源（UID）当前被哪个事务（XID）持有（加锁了）。
     /*
     如果 UID 5 被事务 T10 加锁了：
     u2x = {5L: 10L}
      */
-    private Map<Long, List<Long>> wait;  // 表示正在等待某个资源 UID 的事务列表。    wait：某一给资源的等待列表
+    private LongObjectMap<List<Long>> wait;  // 表示正在等待某个资源 UID 的事务列表。    wait：某一给资源的等待列表（只有真的要等的时候才会往里放，列表里的装箱就不管了）
     /*
     如果事务 T11 和 T12 都在等 UID 5 被释放：
     wait = {5L: [11L, 12L]}
      */
-    private Map<Long, Lock> waitLock;  // 为每个等待中的事务（XID）提供一个 Java 的 Lock 对象，用来阻塞线程，直到资源可用。
+    private LongObjectMap<Lock> waitLock;  // 为每个等待中的事务（XID）提供一个 Java 的 Lock 对象，用来阻塞线程，直到资源可用。
     /*
     如果事务 T11 正在等 UID 5，我们会为它创建一个 Lock（ReentrantLock），加上锁之后阻塞，等 UID 5 可用了再释放。
     waitLock = {11L: LockObject}
 
     “等待锁”指的是：事务暂时还不能获得某个资源（如某条记录）的访问权，它处于等待其他事务释放锁的状态。，就是加上锁这个事务就阻塞，等到资源可用的时候这个锁释放
      */
-    private Map<Long ,Long> waitU;  // 记录每个正在等待的事务（XID）当前正在等待的资源 UID。   事务a等待资源b
+    private LongLongMap waitU;  // 记录每个正在等待的事务（XID）当前正在等待的资源 UID。   事务a等待资源b
     /*
     事务 T11 当前正在等 UID 5：
     waitU = {11L: 5L}
@@ -46,11 +54,11 @@ public class LockTable {
     private Lock lock;
 
     public LockTable(){
-        x2u = new HashMap<>();
-        u2x = new HashMap<>();
-        wait = new HashMap<>();
-        waitLock = new HashMap<>();
-        waitU = new HashMap<>();
+        x2u = new LongObjectMap<>();
+        u2x = new LongLongMap();
+        wait = new LongObjectMap<>();
+        waitLock = new LongObjectMap<>();
+        waitU = new LongLongMap();
         lock = new ReentrantLock();
     }
 
@@ -66,12 +74,12 @@ public class LockTable {
     public Lock add(long xid, long uid) throws Exception{  // 目的就是想让事务xid后的uid资源
         lock.lock();
         try {
-            if(isInList(x2u,xid,uid)){  // 如果uid已经被xid拿到了
+            if(isInSet(xid,uid)){  // 如果uid已经被xid拿到了
                 return null;
             }
             if(!u2x.containsKey(uid)){
                 u2x.put(uid,xid);
-                putIntoList(x2u,xid,uid);
+                putIntoSet(xid,uid);
                 return null;
             }
             waitU.put(xid,uid);
@@ -98,12 +106,9 @@ public class LockTable {
     public void remove(long xid) {
         lock.lock();
         try{
-            List<Long> l = x2u.get(xid);
+            LongSet l = x2u.get(xid);
             if(l != null){
-                while(l.size() > 0){
-                    Long uid = l.remove(0);
-                    selectNewXID(uid);
-                }
+                l.forEach(this::selectNewXID);
             }
             waitU.remove(xid);
             x2u.remove(xid);
@@ -128,7 +133,7 @@ public class LockTable {
         assert l.size() > 0;  // assert: 我认为这里不可能出错，如果错了说明你代码逻辑写崩了。   开发者断言：既然 l != null，那么它 一定至少包含一个事务，否则逻辑就是错的。
 
         while(l.size() > 0){
-            Long xid = l.remove(0);  // 从等待队列中取出第一个事务
+            long xid = l.remove(0);  // 从等待队列中取出第一个事务
             if(!waitLock.containsKey(xid)){  // 如果这个事务 xid 已经不在 waitLock 中，说明它已经取消等待（比如事务主动中止了），直接跳过。
                 continue;
             }else{
@@ -145,7 +150,7 @@ public class LockTable {
     /*
     检测当前锁表中是否存在死锁
      */
-    private Map<Long, Integer> xidStamp;  // 记录每个事务是否被访问过（stamp是访问编号）
+    private LongIntMap xidStamp;  // 记录每个事务是否被访问过（stamp是访问编号）
     /*
     类型：Map<事务ID, 整数stamp标记>
     含义：记录每个事务（XID）在 DFS 过程中的访问状态。
@@ -162,13 +167,13 @@ public class LockTable {
     T3 正在等 T1 占用的资源 ← 形成了环
      */
     private boolean hasDeadLock(){
-        xidStamp = new HashMap<>();
+        xidStamp = new LongIntMap();
         stamp = 1;  // 当前 DFS 的“递归编号”    DFS“第几次”整体递归的编号
         // 这个stamp是用来给本次dfs中所有碰到的xid的一个统一标记，一个dfs递归中所有xid的stamp都一样，借此判断是否有环
         // gpt给你模拟一下过程就懂了
-        for(long xid : x2u.keySet()){  // 从每一个正在运行的事务出发（x2u.keySet()）做一次 DFS 遍历
-            Integer s = xidStamp.get(xid);
-            if(s != null && s > 0){
+        for(long xid : x2u.keys()){  // 从每一个正在运行的事务出发（x2u.keys()）做一次 DFS 遍历
+            int s = xidStamp.get(xid, 0);
+            if(s > 0){
                 continue;  // 已经处理过，不再重复  （这个s如果！= null 且大于0的话，说明之前已经进入过dfs深度遍历，因为只有dfs里面才有xidStamp.put）
             }
             stamp++;  // 每次新的DFS遍历用新编号
@@ -184,26 +189,26 @@ public class LockTable {
     判断：当前事务 xid 是否在等待图中形成了“等待环”，也就是死锁。
      */
     private boolean dfs(long xid){
-        Integer stp = xidStamp.get(xid);  // 当前事务的标签   看看这个事务之前在哪次 DFS 中被访问过
-        if(stp != null && stp == stamp){
+        int stp = xidStamp.get(xid, 0);  // 当前事务的标签   看看这个事务之前在哪次 DFS 中被访问过，0 表示没访问过
+        if(stp == stamp){
             return true;  // 当前事务已在本次DFS路径中 ⇒ 出现了环 ⇒ 死锁
         }
-        if(stp != null && stp < stamp){
+        if(stp != 0 && stp < stamp){
             return false;  // 当前事务是其他DFS路径访问过的，不会影响当前路径 ⇒ 没环
         }
 
         xidStamp.put(xid,stamp);  // 标记当前事务已在当前路径访问过
-        Long uid = waitU.get(xid);   // 查当前事务正在等待哪个资源
-        if(uid != null) return false;  // 没等资源，说明不会死锁
-        Long x = u2x.get(uid);  // 当前资源被哪个事务持有
-        assert x != null;  // 如果事务在等某资源，那这个资源一定是被别人占着的
+        if(!waitU.containsKey(xid)) return false;  // 没等资源，说明不会死锁
+        long uid = waitU.get(xid, 0);   // 查当前事务正在等待哪个资源
+        assert u2x.containsKey(uid);  // 如果事务在等某资源，那这个资源一定是被别人占着的
+        long x = u2x.get(uid, 0);  // 当前资源被哪个事务持有
         return dfs(x);  // 继续 DFS，那个人在等谁？
     }
 
     /*
     从 listMap 中，找到 key 为 uid0 对应的 List，移除其中的元素 uid1，并在 List 为空时删除整个 key。
      */
-    private void removeFromList(Map<Long, List<Long>> listMap, long uid0, long uid1){
+    private void removeFromList(LongObjectMap<List<Long>> listMap, long uid0, long uid1){
         List<Long> l = listMap.get(uid0);
         if(l == null) return;
         Iterator<Long> i = l.iterator();
@@ -222,26 +227,32 @@ public class LockTable {
     /*
     就是将uid0放到这个listMap中，同时将uid1放到对应的list中
      */
-    private void putIntoList(Map<Long, List<Long>> listMap, long uid0, long uid1){
-        if(!listMap.containsKey(uid0)){
-            listMap.put(uid0,new ArrayList<>());
+    private void putIntoList(LongObjectMap<List<Long>> listMap, long uid0, long uid1){
+        List<Long> l = listMap.get(uid0);
+        if(l == null){
+            l = new ArrayList<>();
+            listMap.put(uid0,l);
         }
-        listMap.get(uid0).add(0,uid1);
+        l.add(0,uid1);
     }
 
     /*
-    判断uid1是否在这个listMap中uid0对应的list中
+    记录事务 xid 已经拿到了资源 uid
      */
-    private boolean isInList(Map<Long, List<Long>> listMap, long uid0, long uid1){
-        List<Long> l = listMap.get(uid0);
-        if(l == null) return false;
-        Iterator<Long> i = l.iterator();
-        while(i.hasNext()){
-            Long e = i.next();
-            if(e == uid1){
-                return true;
-            }
+    private void putIntoSet(long xid, long uid){
+        LongSet s = x2u.get(xid);
+        if(s == null){
+            s = new LongSet();
+            x2u.put(xid,s);
         }
-        return false;
+        s.add(uid);
+    }
+
+    /*
+    判断资源 uid 是否已经被事务 xid 拿到了
+     */
+    private boolean isInSet(long xid, long uid){
+        LongSet s = x2u.get(xid);
+        return s != null && s.contains(uid);
     }
 }
@@ -0,0 +1,35 @@
+package com.Hang.backend.VM;
+
+import java.util.Arrays;
+
+/**
+ * 可重复读事务的快照：开始时还没结束的事务有哪些
+ *
+ * 由两部分组成：
+ * active: 建快照时活跃事务的 xid，排好序，查的时候二分
+ * horizon: 建快照时分配的 xid，>= horizon 的事务都当作在快照里
+ *
+ * 快照是不可变的，由 VersionManagerImpl 在 begin 时建好，之后开始的事务共用同一个，直到有事务结束（commit/abort）才作废重建。
+ * 这期间活跃事务只增不减，新增的都是 >= horizon 的 xid（xid 在 VersionManagerImpl 的 lock 里分配），
+ * 所以对后来的事务 T 来说，[horizon, T.xid) 里的事务在 T 开始时一定都还没结束，和给 T 单独拍一个快照的结果一样。
+ * 比 T 晚开始的事务（xid > T.xid）也算在快照里，可见性判断里它们本来就看不到，不影响结果
+ */
+public class Snapshot {
+    private final long[] active;
+    private final long horizon;
+
+    Snapshot(long[] active, long horizon) {
+        Arrays.sort(active);
+        this.active = active;
+        this.horizon = horizon;
+    }
+
+    public boolean contains(long xid){
+        return xid >= horizon || Arrays.binarySearch(active, xid) >= 0;
+    }
+
+    // 快照里最小的 xid，比它早的事务在快照里都是已经结束了的
+    public long xmin(){
+        return active.length > 0 ? active[0] : horizon;
+    }
+}
@@ -1,12 +1,7 @@
 package com.Hang.backend.VM;
 
 
-import com.Hang.backend.DM.pageCache.PageCache;
 import com.Hang.backend.TM.TransactionManagerImpl;
-import com.Hang.backend.common.AbstractCache;
-
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * Transaction 类表示一个具体的事务实例，封装了它的编号、隔离级别、读快照、错误信息以及是否被系统自动终止的标志，是事务调度和并发控制的核心对象之一。
@@ -24,7 +19,7 @@ public class Transaction {
     0：表示 Read Committed（读已提交）
     1：表示 Repeatable Read（可重复读）
      */
-    public Map<Long, Boolean> snapshot;  // 快照
+    public Snapshot snapshot;  // 快照（排好序的活跃 xid 加一个上界，见 Snapshot）
     /*
     快照视图：记录了事务启动时系统中活跃的其他事务ID。
     这是实现 可重复读（RR） 的关键。
@@ -32,7 +27,7 @@ public class Transaction {
     在 level != 0 时（如可重复读），快照在事务启动时就捕获了“当前正在执行的所有事务”的快照，用于后续判断哪些版本的数据可见。
 
     假设你现在开始事务T100，当前系统中正在执行 T90 和 T95：
-    那么 snapshot = {90: true, 95: true}（这表示：在你当前事务（比如 T100）启动的那一刻，系统中仍在运行中、尚未提交的事务有：事务 90、事务 95）
+    那么 snapshot = {90, 95}（这表示：在你当前事务（比如 T100）启动的那一刻，系统中仍在运行中、尚未提交的事务有：事务 90、事务 95）
     之后如果某条数据是由 T95 创建的，那你事务T100 读不到（因为它在 snapshot 中，正在运行还未提交，不能看）。
     “在我 T100 开启时，T90 和 T95 正在运行，还没有提交，我不信任它们的数据，也不看它们产生的内容。”
     但如果是由 T80 创建的，你就能看到（T80在你事务开始前就提交了，不在snapshot里面）。
@@ -48,16 +43,13 @@ public class Transaction {
     如果事务发生异常，系统会自动调用 abort() 方法，并设置该值为 true。
      */
 
-    public static Transaction newTransaction(long xid, int level, Map<Long, Transaction> active) {
-        // active 代表当前系统中所有活跃事务的映射表（Map<Long, Transaction>）
+    public static Transaction newTransaction(long xid, int level, Snapshot snapshot) {
+        // snapshot 是 VersionManagerImpl 在 begin 时给的快照，可能和别的事务共用
         Transaction t = new Transaction();
         t.xid = xid;
         t.level = level;
         if(level != 0){  // 就是可重复读，因此需要快照
-            t.snapshot = new HashMap<>();
-            for(Long key : active.keySet()){
-                t.snapshot.put(key, true);
-            }
+            t.snapshot = snapshot;
         }
         return t;
     }
@@ -66,6 +58,6 @@ public class Transaction {
         if(xid == TransactionManagerImpl.SUPER_XID){
             return false;
         }
-        return snapshot.containsKey(xid);
+        return snapshot.contains(xid);
     }
 }
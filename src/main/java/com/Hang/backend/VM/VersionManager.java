@@ -16,6 +16,15 @@ public interface VersionManager {
     void commit(long xid) throws Exception;
     void abort(long xid);
 
+    // 直接拿着 Transaction 的版本，不用再按 xid 去查活跃事务表（Executor 一个事务里的每条语句都走这里）
+    byte[] read(Transaction t, long uid) throws Exception;
+    long insert(Transaction t, byte[] data) throws Exception;
+    boolean delete(Transaction t, long uid) throws Exception;
+
+    Transaction beginTransaction(int level);
+    void commit(Transaction t) throws Exception;
+    void abort(Transaction t);
+
     public static VersionManager newVersionManager(TransactionManager tm, DataManager dm) {
         return new VersionManagerImpl(tm,dm);
     }
@@ -2,14 +2,17 @@ package com.Hang.backend.VM;
 
 
 import com.Hang.backend.DM.DataManager;
+import com.Hang.backend.DM.Reclaimer;
 import com.Hang.backend.TM.TransactionManager;
 import com.Hang.backend.TM.TransactionManagerImpl;
 import com.Hang.backend.common.AbstractCache;
 import com.Hang.backend.utils.Panic;
 import com.Hang.common.Error;
 
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -38,23 +41,35 @@ import java.util.concurrent.locks.ReentrantLock;
  *
  * 5. 缓存管理
  * 继承自 AbstractCache<Entry>，缓存Entry，减少IO开销，提高效率。
+ *
+ * 活跃事务表是 ConcurrentHashMap，读写数据时按 xid 查事务不加锁；拿着 Transaction 的重载（Executor 用的）连查都不用查。
+ * lock 只在 begin/commit/abort 时拿：begin 分配 xid、拍快照、登记要和别的事务的登记/注销互斥，快照才是一个时刻的活跃事务
+ *
+ * 可重复读的快照（Snapshot）在两次事务结束之间是共用的：只有活跃事务表里有事务被注销时才作废，下一个可重复读事务 begin 时再重建，
+ * 所以连续开始的事务 begin 是 O(1) 的，不用每次都把活跃事务表拷一遍
+ *
+ * 6. 回收死掉的版本
+ * 作为 Reclaimer 注册给 DM：DM 压缩页时问 horizon() 和 isDead()，被删掉的版本在删除早于所有活跃事务和快照之后就会被回收
  */
-public class VersionManagerImpl extends AbstractCache<Entry> implements VersionManager {
+public class VersionManagerImpl extends AbstractCache<Entry> implements VersionManager, Reclaimer {
 
     TransactionManager tm;
     DataManager dm;
     Map<Long, Transaction> activeTransactions;
-    Lock lock;
+    Lock lock;  // 只保护活跃事务表的登记和注销，以及 snapshot，见类注释
+    private Snapshot snapshot;  // 当前共用的快照，null 表示活跃事务表变过了，要重建
+    private long nextXid = 1;  // 以后 begin 的事务的 xid 都不比它小，lock 保护
     LockTable lt;
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
         super(0);
         this.tm = tm;
         this.dm = dm;
-        this.activeTransactions = new HashMap<Long, Transaction>();
+        this.activeTransactions = new ConcurrentHashMap<>();
         activeTransactions.put(TransactionManagerImpl.SUPER_XID,Transaction.newTransaction(TransactionManagerImpl.SUPER_XID,0,null));
         this.lock = new ReentrantLock();
         this.lt = new LockTable();
+        dm.setReclaimer(this);
     }
 
     /*
@@ -62,10 +77,11 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public byte[] read(long xid, long uid) throws Exception {
-        lock.lock();
-        Transaction t = activeTransactions.get(xid);
-        lock.unlock();
+        return read(activeTransactions.get(xid), uid);
+    }
 
+    @Override
+    public byte[] read(Transaction t, long uid) throws Exception {
         if(t.err != null){
             throw t.err;
         }
@@ -94,22 +110,27 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        lock.lock();  // 使用全局锁 lock 来保证对 activeTransactions 的并发访问安全。
-        Transaction t = activeTransactions.get(xid);  // 获取当前事务对象
-        lock.unlock();
+        return insert(activeTransactions.get(xid), data);  // 获取当前事务对象
+    }
+
+    @Override
+    public long insert(Transaction t, byte[] data) throws Exception {
         if(t.err != null){  // 如果事务曾经出现过错误（如死锁中止、并发冲突），err 不为空，直接抛出异常，不允许继续插入数据。
             throw t.err;
         }
 
-        byte[] raw = Entry.wrapEntryRaw(xid, data);  // 包装成Entry格式
-        return dm.insert(xid,raw);
+        byte[] raw = Entry.wrapEntryRaw(t.xid, data);  // 包装成Entry格式
+        return dm.insertVersion(t.xid,raw);
     }
 
     @Override
     public boolean delete(long xid, long uid) throws Exception {
-        lock.lock();
-        Transaction t = activeTransactions.get(xid);
-        lock.unlock();
+        return delete(activeTransactions.get(xid), uid);
+    }
+
+    @Override
+    public boolean delete(Transaction t, long uid) throws Exception {
+        long xid = t.xid;
         if(t.err != null){
             throw t.err;
         }
@@ -132,7 +153,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
                 l = lt.add(xid, uid);
             }catch(Exception e){
                 t.err = Error.ConcurrentUpdateException;
-                internAbort(xid,true);
+                internAbort(t,true);
                 t.autoAborted = true;
                 throw t.err;
             }
@@ -147,7 +168,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
             if(Visibility.isVersionSkip(tm,t,entry)){
                 t.err = Error.ConcurrentUpdateException;
-                internAbort(xid,true);
+                internAbort(t,true);
                 t.autoAborted = true;
                 throw t.err;
             }
@@ -160,42 +181,69 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     @Override
     public long begin(int level) {
+        return beginTransaction(level).xid;
+    }
+
+    @Override
+    public Transaction beginTransaction(int level) {
         lock.lock();
         try{
             long xid = tm.begin();
-            Transaction t = Transaction.newTransaction(xid,level,activeTransactions);
+            nextXid = xid + 1;
+            if(level != 0 && snapshot == null){
+                snapshot = takeSnapshot(xid);
+            }
+            Transaction t = Transaction.newTransaction(xid,level,snapshot);
             activeTransactions.put(xid,t);
-            return xid;
+            return t;
         }finally{
             lock.unlock();
         }
     }
 
+    // 拍一个快照：当前活跃的事务（刚分配的 xid 还没登记，不在里面），上界是刚分配的 xid；调用方持有 lock
+    private Snapshot takeSnapshot(long xid){
+        long[] active = new long[activeTransactions.size()];
+        int n = 0;
+        for(long key : activeTransactions.keySet()){
+            if(key != TransactionManagerImpl.SUPER_XID){
+                active[n++] = key;
+            }
+        }
+        return new Snapshot(Arrays.copyOf(active, n), xid);
+    }
+
     @Override
     public void commit(long xid) throws Exception {
-        lock.lock();
         Transaction t = activeTransactions.get(xid);
-        lock.unlock();
-        try{
-            if(t.err != null){
-                throw t.err;
-            }
-        } catch (NullPointerException n) {
-            System.out.println(xid);
-            System.out.println(activeTransactions.keySet());
-            Panic.panic(n);
+        if(t == null){
+            Panic.panic(new NullPointerException());
+        }
+        commit(t);
+    }
+
+    @Override
+    public void commit(Transaction t) throws Exception {
+        if(t.err != null){
+            throw t.err;
         }
 
         lock.lock();
-        activeTransactions.remove(xid);
+        activeTransactions.remove(t.xid);
+        snapshot = null;
         lock.unlock();
-        lt.remove(xid);
-        tm.commit(xid);
+        lt.remove(t.xid);
+        tm.commit(t.xid);
     }
 
     @Override
     public void abort(long xid) {
-        internAbort(xid,false);
+        internAbort(activeTransactions.get(xid),false);
+    }
+
+    @Override
+    public void abort(Transaction t) {
+        internAbort(t,false);
     }
 
     /*
@@ -206,19 +254,20 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     死锁检测失败：
     事务在尝试获取资源时，系统检测到死锁（通过依赖图 DFS 检测）
     解决方式是中止其中一个事务（通常是当前这个）
-    表现为抛出 DeadlockException，然后调用 internAbort(xid, true)
+    表现为抛出 DeadlockException，然后调用 internAbort(t, true)
     并发冲突（版本跳跃）：
     在 delete() 操作中，如果出现版本跳跃，比如其他事务已经修改该记录
     当前事务无法安全继续操作，系统为了保证隔离性，自动中止该事务
-    调用 internAbort(xid, true)
+    调用 internAbort(t, true)
      */
-    private void internAbort(long xid, boolean autoAborted){  // autoAborted为true的话，就一般是出现死锁了
-        lock.lock();
-        Transaction t = activeTransactions.get(xid);  // 加锁保护线程安全，从事务表中获取该事务 t
+    private void internAbort(Transaction t, boolean autoAborted){  // autoAborted为true的话，就一般是出现死锁了
+        long xid = t.xid;
         if(!autoAborted){
+            lock.lock();
             activeTransactions.remove(xid); // 不是自动终止，就手动终止
+            snapshot = null;
+            lock.unlock();
         }
-        lock.unlock();
 
         if(t.autoAborted) return;  // 如果这个事务之前已经被“自动中止”过，就不要重复执行下面的逻辑
         // 防止“重复中止”同一个事务，比如事务已死锁被自动中止过一次
@@ -226,6 +275,33 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         tm.abort(xid);  // 最后通知 事务管理器 TM 执行真正的“事务中止”操作
     }
 
+    /*
+    回收水位线：活跃事务的 xid 和它们快照里最小的 xid、当前共用的快照里最小的 xid（之后 begin 的事务还会拿到它）、以后 begin 的 xid，取最小。
+    删除者比它早又已经提交了的话，删除者现在不活跃，以后也不会出现在谁的快照里（快照拍的是活跃的事务），所有事务都看得到这次删除。
+    要拿 lock：和 begin 互斥，不会漏掉拿到了快照还没登记的事务
+     */
+    @Override
+    public long horizon() {
+        lock.lock();
+        try{
+            long horizon = snapshot == null ? nextXid : Math.min(nextXid, snapshot.xmin());
+            for(Transaction t : activeTransactions.values()){
+                if(t.xid == TransactionManagerImpl.SUPER_XID){
+                    continue;
+                }
+                horizon = Math.min(horizon, t.snapshot == null ? t.xid : t.snapshot.xmin());
+            }
+            return horizon;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isDead(ByteBuffer raw, int offset, long horizon) {
+        return Visibility.isDead(tm, Entry.parseXmin(raw, offset), Entry.parseXmax(raw, offset), horizon);
+    }
+
     public void releaseEntry(Entry entry){
         super.release(entry.getUid());
     }
@@ -37,13 +37,18 @@ public class Visibility {
     XMAX：删除该数据的事务 ID（删除者）
      */
     public static boolean isVersionSkip(TransactionManager tm, Transaction t, Entry e){
-        long xmax = e.getXmax();
         if(t.level == 0){
             return false;  // Read Committed 模式下，允许版本跳跃
         }else{
             // 只有在 可重复读（RR）模式下才检查版本跳跃---且只有在删除者已经提交的情况下才算是版本跳跃
             // 删除者的事务 ID 比当前事务大，说明是 后来提交的删除或者删除者事务还没提交，在当前事务快照中被认为是 未提交 的，也要避免
-            return tm.isCommitted(xmax) && (xmax > t.xid || t.isInSnapshot(xmax));
+            e.rLock();
+            try{
+                long xmax = e.xmax();
+                return e.isXmaxCommitted(tm) && (xmax > t.xid || t.isInSnapshot(xmax));
+            }finally{
+                e.rUnlock();
+            }
             // tm.isCommitted(xmax)指的是事务 xmax 是否已提交（系统全局状态）
             // t.isInSnapshot(xmax)指的是事务 xmax 在当前事务开始时是否未提交（当前事务的视角快照）
             // 调用的是当前事务 t 的快照方法，意思是：“在我事务 t 开始时，事务 xmax 是不是还没提交？”  在快照中就是没提交
@@ -59,12 +64,18 @@ public class Visibility {
 
     /*
     主入口，判断某条记录是否对事务可见：
+    整个判断拿一次 Entry 的读锁，XMIN、XMAX 和提示位（见 Entry）都在锁里读，插入者、删除者的状态有提示位就不用问 TM
      */
     public static boolean isVisible(TransactionManager tm, Transaction t,Entry e){
-        if(t.level == 0){
-            return readCommitted(tm, t, e);
-        }else{
-            return repeatableRead(tm, t, e);
+        e.rLock();
+        try{
+            if(t.level == 0){
+                return readCommitted(tm, t, e);
+            }else{
+                return repeatableRead(tm, t, e);
+            }
+        }finally{
+            e.rUnlock();
         }
     }
 
@@ -74,16 +85,16 @@ public class Visibility {
     private static boolean readCommitted(TransactionManager tm, Transaction t, Entry e){
         long xid = t.xid;  // t指的是当前的事务
         // xid指的是当前要读这条记录的事务的 ID
-        long xmin = e.getXmin();
-        long xmax = e.getXmax();
+        long xmin = e.xmin();
+        long xmax = e.xmax();
         if(xmin == xid && xmax == 0){ // 当前事务自己插入没有被删除当然是可见的
             return true;
         }
         // 说明插入这条记录的事务已经提交了。
-        if(tm.isCommitted(xmin)){  // 检查这个是否已提交就是tm事务管理中检查这个一个字节的字段是否和对应的字段相等即可
+        if(e.isXminCommitted(tm)){  // 检查这个是否已提交就是tm事务管理中检查这个一个字节的字段是否和对应的字段相等即可
             if(xmax == 0) return true;  // 没被删除，当然可以看见。
             if(xmax != xid){  // 被别的事务删除了。
-                if(!tm.isCommitted(xmax)){  // 删除它的那个事务还没提交 ⇒ 删除不算数 ⇒ 这条记录仍然可以看见！
+                if(!e.isXmaxCommitted(tm)){  // 删除它的那个事务还没提交 ⇒ 删除不算数 ⇒ 这条记录仍然可以看见！
                     // （读已提交顾名思义就是只读取已提交的数据）
                     return true;
                 }
@@ -97,14 +108,14 @@ public class Visibility {
      */
     private static boolean repeatableRead(TransactionManager tm, Transaction t, Entry e){
         long xid = t.xid;  // t指的是当前事务
-        long xmin = e.getXmin();
-        long xmax = e.getXmax();
+        long xmin = e.xmin();
+        long xmax = e.xmax();
         if(xmin == xid && xmax == 0) return true;  // 当前事务自己插入的记录，且没有被删除 → 可见
 
-        if(tm.isCommitted(xmin) && xmin < xid && !t.isInSnapshot(xmin)){  //插入者已经提交 ✅ 插入者在当前事务开始之前（xmin < xid）✅ 插入者不在当前事务快照中 ✅（说明插入时已提交）
+        if(e.isXminCommitted(tm) && xmin < xid && !t.isInSnapshot(xmin)){  //插入者已经提交 ✅ 插入者在当前事务开始之前（xmin < xid）✅ 插入者不在当前事务快照中 ✅（说明插入时已提交）
             if(xmax == 0) return true;
             if(xmax != xid){
-                if(!tm.isCommitted(xmax) || xmax > xid || t.isInSnapshot(xmax)){  // 在当前事务快照中就是没有提交-- 可见
+                if(!e.isXmaxCommitted(tm) || xmax > xid || t.isInSnapshot(xmax)){  // 在当前事务快照中就是没有提交-- 可见
                     return true;
                 }
             }
@@ -112,4 +123,16 @@ public class Visibility {
         return false;
     }
 
+    /*
+    版本是不是已经死了：现在活着的和以后开始的事务都看不到它，DM 压缩页时可以回收（见 VersionManagerImpl.horizon）
+    插入者回滚了，谁都看不到；
+    或者删除者已经提交，而且比 horizon 早：读已提交的事务看到删除已提交就看不到这条，可重复读的事务快照里这次删除也都已经提交了
+     */
+    public static boolean isDead(TransactionManager tm, long xmin, long xmax, long horizon){
+        if(tm.isAborted(xmin)){
+            return true;
+        }
+        return xmax != 0 && xmax < horizon && tm.isCommitted(xmax);
+    }
+
 }
@@ -2,8 +2,12 @@ package com.Hang.backend.common;
 
 import com.Hang.common.Error;
 
-import java.util.HashMap;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -12,128 +16,354 @@ import java.util.concurrent.locks.ReentrantLock;
  * 引用技术缓存框架
  *
  * cache存的时全部的数据，因为页(Page)是内存管理的最小单位，因此数据都是存到页中的，因此cache存储的是一个键值对，其中的值就是页，键时页号pageNumber
+ *
+ * 有容量上限（maxResource > 0）时，引用计数归零的资源不会立刻被删掉，而是留在缓存里，
+ * 等到缓存满了再由 CLOCK 算法从未被引用的资源中挑一个驱逐（驱逐时通过 releaseForCache 写回）。
+ * 没有容量上限（maxResource == 0）时保持原来的行为：引用计数归零立刻释放。
+ * 因为 DataItem、Entry 这类缓存本身还引用着下层的资源（比如 DataItem 占着 Page），一直留着会把下层缓存占满。
+ *
+ * 缓存按 key 分成 SEGMENT_NO 个段，每段有自己的锁、哈希表和 CLOCK 环（类似 ConcurrentHashMap 的分段锁），
+ * 不同段上的 key 的 get/release 互不阻塞。资源个数 count 是全局的原子整数，容量检查不需要拿任何段锁。
  */
 public abstract class AbstractCache<T> {
-    // 键是资源的唯一标识符（通常是资源的ID或哈希值），值是缓存的资源对象（类型为 T）
-    private HashMap<Long,T> cache;  // 实际缓存的数据   cache中放的是键值对，值value其实是Page（这里用T，可以使任何类型的数据）
-    private HashMap<Long, Integer> references;  // 资源的引用个数---这就是引用计数法，就是记录某个资源被引用的次数
-    // 只有一个线程可以互斥获得一个资源的锁的步骤是逻辑实现的，而不是这个锁本身的性质
-    private HashMap<Long, Boolean> getting;  // (这是用来保证多线程环境下的线程安全的)正在获得某资源的线程(获取资源指的是将资源加载到缓存里面，如果使缓存的话，直接拿就可以了)
-    // getting 用于记录哪些资源当前正在从数据源获取中。键是资源的唯一标识符，值是一个布尔值，表示该资源是否正在被获取中。
-    private int maxResource;  // 缓存的最大缓存资源数
-    private int count = 0;  // 缓存中元素的个数
-    private Lock lock;
+    private static final int SEGMENT_NO = 16;  // 段数，必须是2的幂，用 key 的哈希值的低位选段
+
+    /**
+     * 缓存中的一个槽位，资源本身、引用计数、CLOCK 访问位和加载门闩都放在一起
+     */
+    private static class Holder<T> {
+        final long key;
+        T obj;  // 实际缓存的数据（值其实是Page，这里用T，可以使任何类型的数据）
+        final AtomicInteger references = new AtomicInteger(0);  // 资源的引用个数---这就是引用计数法，就是记录某个资源被引用的次数
+        volatile boolean hot;  // CLOCK 访问位，被访问时置为 true，表针扫过时如果是 true 就给第二次机会并清掉
+        // 不为 null 表示这个资源正在被某个线程从数据源获取，其他想要它的线程在这个门闩上等待，加载完成（不管成功还是失败）后打开门闩
+        CountDownLatch loading;
+
+        Holder(long key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * 一个段：一把锁保护这段的哈希表和 CLOCK 环
+     */
+    private static class Segment<T> {
+        final Lock lock = new ReentrantLock();
+        // 键是资源的唯一标识符（通常是资源的ID或哈希值），值是这个资源的槽位（包括正在获取中的）
+        final LongObjectMap<Holder<T>> table = new LongObjectMap<>();
+        // CLOCK 环，里面放着这个段所有已经加载好的资源，hand 是表针
+        final List<Holder<T>> clock = new ArrayList<>();
+        int hand = 0;
+    }
+
+    private final Segment<T>[] segments;
+    private final int maxResource;  // 缓存的最大缓存资源数
+    private final AtomicInteger count = new AtomicInteger(0);  // 缓存中元素的个数（包括正在获取中的）
+    private final AtomicInteger evictCursor = new AtomicInteger(0);  // 下一次驱逐从哪个段开始找，轮流来避免总盯着一个段
 
     public AbstractCache(int maxResource) {
         this.maxResource = maxResource;
-        this.cache = new HashMap<>();
-        this.references = new HashMap<>();
-        this.getting = new HashMap<>();
-        this.lock = new ReentrantLock();
+        @SuppressWarnings({"unchecked", "rawtypes"})  // 不能直接 new 泛型数组，只能 new 原始类型的数组再转，数组不会漏到外面去
+        Segment<T>[] segs = new Segment[SEGMENT_NO];
+        this.segments = segs;
+        for(int i = 0; i < SEGMENT_NO; i++){
+            segments[i] = new Segment<>();
+        }
+    }
+
+    private Segment<T> segmentFor(long key){
+        // 页号、uid 的低位分布不均匀（uid 的低16位是页内的槽号），先把高低位混一下再取模
+        long h = key ^ (key >>> 32);
+        h ^= (h >>> 16);
+        return segments[(int) h & (SEGMENT_NO - 1)];
     }
 
     // 从缓存中获取资源
     protected T get(long key) throws Exception{
+        Segment<T> seg = segmentFor(key);
+        Holder<T> holder;
         // 因为可能其他线程正在操作这个数据，因此要循环取获得锁----这里用死循环是因为万一其他线程在获取这个数据，那么就等会再来，所以是死循环
         while(true){
-            lock.lock();  // 这个加锁是为了控制线程安全
-            if(getting.get(key)){
-                // 如果其他线程正在获取这个资源，自己先解锁，然后等待一毫秒然后继续循环
-                lock.unlock();
-                try{
-                    Thread.sleep(1);
-                }catch(InterruptedException e){
-                    e.printStackTrace();
+            seg.lock.lock();  // 这个加锁是为了控制线程安全，只锁 key 所在的段
+            holder = seg.table.get(key);
+            if(holder != null){
+                CountDownLatch loading = holder.loading;
+                if(loading != null){
+                    // 如果其他线程正在获取这个资源，自己先解锁，然后在门闩上等加载线程完成，被唤醒后继续循环
+                    seg.lock.unlock();
+                    try{
+                        loading.await();
+                    }catch(InterruptedException e){
+                        // 和加载失败一样把异常抛给调用方，不接着等；中断标记设回去，上层还能看到
+                        Thread.currentThread().interrupt();
+                        throw e;
+                    }
                     continue;
                 }
-                continue;
-            }
-
-            if(cache.containsKey(key)){
-                // 表示当前资源没有被线程正在获得
                 // 表示这个资源已经在缓存里面
-                T obj = cache.get(key);  // 得到资源之后就要放开锁
-                references.put(key,references.get(key)+1);
-                lock.unlock();
-                return obj;
+                holder.references.incrementAndGet();
+                holder.hot = true;
+                seg.lock.unlock();
+                return holder.obj;
             }
-            // 如果资源没有在缓存中，尝试获取资源。如果缓存已满，则报错
-            if(maxResource > 0 && count == maxResource){  // 这里就和LRU不一样，这里达到最大缓存后，不是自动进行内存淘汰，而是报错
-                lock.unlock();
-                throw Error.CacheFullException;
+            // 如果资源没有在缓存中，尝试获取资源。如果缓存已满，先驱逐一个没有被引用的资源，实在驱逐不了（全都被引用着）才报错
+            if(!reserve()){
+                seg.lock.unlock();  // 驱逐要去拿别的段的锁，先把自己这段放掉
+                if(!evict()){
+                    throw Error.CacheFullException;
+                }
+                continue;  // 腾出位置后重新走一遍，解锁的间隙里别的线程可能已经在加载这个key了
             }
-            count++;
-            getting.put(key,true); // 这是获取资源的过程（是从磁盘中加载资源到缓存），只有当加载到缓存中后才能拿，因此先解锁
-            lock.unlock();
+            holder = new Holder<>(key);
+            holder.loading = new CountDownLatch(1);
+            seg.table.put(key, holder); // 这是获取资源的过程（是从磁盘中加载资源到缓存），只有当加载到缓存中后才能拿，因此先解锁
+            seg.lock.unlock();
             break;
         }
 
         // 尝试获取资源
+        CountDownLatch loading = holder.loading;
         T obj = null;
         try{
             obj = getForCache(key);  // 从磁盘中加载资源，本质是通过RandomAccessFile，这里通过filechannel去获取数据（fc）
         }catch(Exception e){
-            lock.lock();  // 操作这些资源的时候一定要加锁，防止报错
-            count--;  // 因为前面已经默认要去获得资源，已经+1了，这里如果失败的话就-1
-            getting.remove(key);
-            lock.unlock();
+            seg.lock.lock();  // 操作这些资源的时候一定要加锁，防止报错
+            seg.table.remove(key);
+            seg.lock.unlock();
+            count.decrementAndGet();  // 因为前面已经默认要去获得资源，已经+1了，这里如果失败的话就-1
+            loading.countDown();  // 唤醒等待的线程，它们会重新尝试获取
             throw e;
         }
 
         // 现在已经获取到资源
-        lock.lock();
-        getting.put(key,false);
-        cache.put(key,obj);
-        references.put(key,1);
-        lock.unlock();
+        seg.lock.lock();
+        holder.obj = obj;
+        holder.references.set(1);
+        holder.hot = true;
+        holder.loading = null;
+        if(maxResource > 0){
+            seg.clock.add(holder);
+        }
+        seg.lock.unlock();
+        loading.countDown();  // 资源已经进了缓存，唤醒等待这个资源的线程
         return obj;
     }
 
+    /**
+     * 给一个新资源占一个位置，缓存满了返回 false
+     */
+    private boolean reserve(){
+        while(true){
+            int c = count.get();
+            if(maxResource > 0 && c >= maxResource){
+                return false;
+            }
+            if(count.compareAndSet(c, c + 1)){
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 从 evictCursor 指向的段开始，一段一段地找可以驱逐的资源，找到一个就返回 true
+     */
+    private boolean evict(){
+        int start = evictCursor.getAndIncrement();
+        for(int i = 0; i < SEGMENT_NO; i++){
+            Segment<T> seg = segments[(start + i) & (SEGMENT_NO - 1)];
+            seg.lock.lock();
+            try{
+                if(evict(seg)){
+                    count.decrementAndGet();
+                    return true;
+                }
+            }finally{
+                seg.lock.unlock();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * CLOCK 驱逐：表针绕着环转，跳过还被引用的资源，访问位为 true 的清掉访问位给第二次机会，
+     * 碰到第一个没被引用并且访问位为 false 的资源就把它写回并移出缓存。
+     * 转两圈还找不到说明这一段的资源都被引用着，返回 false
+     *
+     * 调用时必须持有 seg.lock
+     */
+    private boolean evict(Segment<T> seg){
+        List<Holder<T>> clock = seg.clock;
+        int size = clock.size();
+        for(int i = 0; i < 2 * size; i++){
+            if(seg.hand >= clock.size()){
+                seg.hand = 0;
+            }
+            Holder<T> holder = clock.get(seg.hand);
+            if(holder.references.get() > 0){
+                seg.hand++;
+                continue;
+            }
+            if(holder.hot){
+                holder.hot = false;
+                seg.hand++;
+                continue;
+            }
+            // 把环上最后一个槽位挪到被驱逐的位置上，这样删除是 O(1) 的，表针不用动
+            int last = clock.size() - 1;
+            clock.set(seg.hand, clock.get(last));
+            clock.remove(last);
+            seg.table.remove(holder.key);
+            releaseForCache(holder.obj);  // 被驱逐的资源要写回（脏页要刷盘），在段锁里做，防止同一个key被并发地重新读进来读到旧数据
+            return true;
+        }
+        return false;
+    }
+
     /**
      * 强行释放一个缓存(指的是一个资源的缓存)(有很多个线程去引用这块资源的)
      *
      * releaseForCache是将需要移除的数据写回到磁盘里去，保证数据一致性；release的话使完整的移除一个缓存数据，
      * 包含写回和删除cache中的数据以及references中引用数-1
+     *
+     * 有容量上限的缓存在引用数归零时只减引用，资源留在缓存里，等 evict 来驱逐
      */
     protected void release(long key){
-        lock.lock();
+        Segment<T> seg = segmentFor(key);
+        seg.lock.lock();
         try{
-            int ref = references.get(key) - 1;
-            if(ref == 0){  // 如果这个资源没有被任何引用了，就需要将这个资源进行释放掉（这是需要先将这个数据写到磁盘里去，然后在将其从缓存中去掉）
-                T obj = cache.get(key); // 从缓存中获取资源
-                releaseForCache(obj); // 处理资源的释放（releaseForCache就是需要将这个资源写回磁盘中，防止缓存更新的数据和磁盘数据的不一致）
+            Holder<T> holder = seg.table.get(key);
+            int ref = holder.references.decrementAndGet();
+            if(ref == 0 && maxResource == 0){  // 如果这个资源没有被任何引用了，就需要将这个资源进行释放掉（这是需要先将这个数据写到磁盘里去，然后在将其从缓存中去掉）
+                releaseForCache(holder.obj); // 处理资源的释放（releaseForCache就是需要将这个资源写回磁盘中，防止缓存更新的数据和磁盘数据的不一致）
                 // 就是将这个准备要从缓存中删除的数据写道磁盘里，只有把这个数据写到磁盘之后才会将其从cache中去除（避免数据不一致）
-                references.remove(key); //
-                cache.remove(key);
-                count--;
-            }else{
-                references.put(key,ref);
+                seg.table.remove(key);
+                count.decrementAndGet();
             }
         }finally {
-            lock.unlock();
+            seg.lock.unlock();
         }
     }
 
     /**
-     * 关闭缓存，写回所有资源  就是将缓存中所有的数据都删掉
+     * 返回缓存里所有已经加载好、并且满足 filter 的资源（比如后台写回时找脏页），返回的资源没有被钉住，
+     * 要对它做慢操作（I/O）之前先用 pin 钉住，做完再 release。
+     * filter 在段锁里执行，只能做很轻的判断
      */
-    protected void close(){
-        lock.lock();
+    protected List<T> collectCached(Predicate<T> filter){
+        List<T> res = new ArrayList<>();
+        for(Segment<T> seg : segments){
+            seg.lock.lock();
+            try{
+                seg.table.forEachValue(holder -> {
+                    if(holder.loading == null && filter.test(holder.obj)){
+                        res.add(holder.obj);
+                    }
+                });
+            }finally{
+                seg.lock.unlock();
+            }
+        }
+        return res;
+    }
+
+    /**
+     * 如果 key 在缓存里对应的还是 obj 这个对象，就把它钉住（引用数+1）并返回 true，之后要 release。
+     * 对象已经被驱逐（驱逐时已经写回过了）或者被重新加载成了别的对象就返回 false，
+     * 这样不会拿一个旧对象去覆盖新对象写下去的数据
+     */
+    protected boolean pin(long key, T obj){
+        Segment<T> seg = segmentFor(key);
+        seg.lock.lock();
+        try{
+            Holder<T> holder = seg.table.get(key);
+            if(holder == null || holder.loading != null || holder.obj != obj){
+                return false;
+            }
+            holder.references.incrementAndGet();  // 不动访问位，后台钉住不算一次访问
+            return true;
+        }finally{
+            seg.lock.unlock();
+        }
+    }
+
+    /**
+     * key 是否已经在缓存里（包括正在加载的），只是个提示，返回以后随时可能变
+     */
+    protected boolean isCached(long key){
+        Segment<T> seg = segmentFor(key);
+        seg.lock.lock();
+        try{
+            return seg.table.containsKey(key);
+        }finally{
+            seg.lock.unlock();
+        }
+    }
+
+    /**
+     * key 当前的引用数，不在缓存里（或者还在加载）返回 0。只是个提示，返回以后随时可能变
+     */
+    protected int references(long key){
+        Segment<T> seg = segmentFor(key);
+        seg.lock.lock();
+        try{
+            Holder<T> holder = seg.table.get(key);
+            return holder == null || holder.loading != null ? 0 : holder.references.get();
+        }finally{
+            seg.lock.unlock();
+        }
+    }
+
+    /**
+     * 预读用：把调用方已经加载好的 obj 放进缓存，不钉住（引用数为 0），访问位也不置，没被用到的话最先被驱逐。
+     * 只有有容量上限的缓存才能这样放（没有上限的缓存靠引用数归零来释放，没人引用的资源永远不会被释放）。
+     * key 已经在缓存里、缓存满了又驱逐不出位置、或者 valid（在 key 所在段的段锁里检查）返回 false 时不放，返回 false，obj 由调用方处理
+     */
+    protected boolean offer(long key, T obj, BooleanSupplier valid){
+        if(maxResource <= 0){
+            return false;
+        }
+        if(!reserve() && !(evict() && reserve())){
+            return false;
+        }
+        Segment<T> seg = segmentFor(key);
+        seg.lock.lock();
         try{
-            // 获取所有资源key
-            Set<Long> keys = cache.keySet();
-            for(long key : keys){
-                // 获得这个是为了在缓存中释放这个
-                T obj = cache.get(key);
-                // 释放缓存(后续处理)
-                releaseForCache(obj);  // 只要缓存数据要移除，都是需要写回到磁盘里的，保证数据一致性
-                // 引用计数法移除缓存
-                references.remove(key);
-                // 实际缓存移除缓存
-                cache.remove(obj);
+            if(seg.table.containsKey(key) || !valid.getAsBoolean()){
+                count.decrementAndGet();
+                return false;
             }
+            Holder<T> holder = new Holder<>(key);
+            holder.obj = obj;
+            seg.table.put(key, holder);
+            seg.clock.add(holder);
+            return true;
         }finally{
-            lock.unlock();
+            seg.lock.unlock();
+        }
+    }
+
+    /**
+     * 关闭缓存，写回所有资源  就是将缓存中所有的数据都删掉
+     */
+    protected void close(){
+        for(Segment<T> seg : segments){
+            seg.lock.lock();
+            try{
+                seg.table.forEachValue(holder -> {
+                    if(holder.loading != null){
+                        return;  // 还没加载完的没有东西可写回
+                    }
+                    // 释放缓存(后续处理)
+                    releaseForCache(holder.obj);  // 只要缓存数据要移除，都是需要写回到磁盘里的，保证数据一致性
+                });
+                count.addAndGet(-seg.table.size());
+                // 引用计数法移除缓存 实际缓存移除缓存
+                seg.table.clear();
+                seg.clock.clear();
+                seg.hand = 0;
+            }finally{
+                seg.lock.unlock();
+            }
         }
     }
 
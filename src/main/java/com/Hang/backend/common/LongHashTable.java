@@ -0,0 +1,173 @@
+package com.Hang.backend.common;
+
+/**
+ * 以 long 为键的开放寻址哈希表的公共骨架（线性探测 + 删除时向前回填），
+ * 给 LongObjectMap、LongIntMap、LongLongMap、LongSet 共用。
+ *
+ * 缓存、锁表、快照里的键都是 uid 或 xid，用 HashMap<Long, ...> 的话几乎每次操作都要装箱一个 Long，
+ * 高 QPS 下这些短命对象会把年轻代刷得很快。这里键直接存在 long[] 里，值由子类存在对应下标的数组里，
+ * 除了扩容以外不产生任何垃圾。
+ *
+ * 不是线程安全的，调用方自己加锁
+ */
+abstract class LongHashTable {
+    private static final float LOAD_FACTOR = 0.6f;
+    private static final int MIN_CAPACITY = 8;
+
+    protected long[] keys;
+    protected boolean[] used;  // 槽位是否有键，单独用一个数组标记，这样 0 也可以当正常的键（SUPER_XID 就是 0）
+    protected int size;
+    private int mask;
+    private int resizeAt;
+
+    protected LongHashTable(int expected) {
+        int capacity = MIN_CAPACITY;
+        while(capacity * LOAD_FACTOR < expected){
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity){
+        keys = new long[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+        allocValues(capacity);
+    }
+
+    // murmur3 的 fmix64，把页号、uid 这种低位规律很强的键打散
+    private static int hash(long key){
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * 找到键所在的槽位，不存在返回 -1
+     */
+    protected int indexOf(long key){
+        int i = hash(key) & mask;
+        while(used[i]){
+            if(keys[i] == key){
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * 找到键所在的槽位，不存在就占一个新槽位（新槽位的值由子类的 clearValue 保证是初始状态）
+     * 返回值 >= 0 表示键原来就在，< 0 表示新插入的槽位 -(i+1)
+     */
+    protected int insertIndex(long key){
+        if(size >= resizeAt){
+            rehash(keys.length << 1);
+        }
+        int i = hash(key) & mask;
+        while(used[i]){
+            if(keys[i] == key){
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        used[i] = true;
+        keys[i] = key;
+        size++;
+        return -(i + 1);
+    }
+
+    /**
+     * 删掉第 i 个槽位，并把后面同一个探测链上的键往前挪，这样就不需要墓碑标记
+     */
+    protected void removeAt(int i){
+        used[i] = false;
+        clearValue(i);
+        size--;
+        int j = i;
+        while(true){
+            j = (j + 1) & mask;
+            if(!used[j]){
+                return;
+            }
+            int k = hash(keys[j]) & mask;  // j 上这个键本来应该在的位置
+            // k 循环地落在 (i, j] 里说明它不需要挪，否则挪到空出来的 i 上
+            boolean stay = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+            if(stay){
+                continue;
+            }
+            keys[i] = keys[j];
+            used[i] = true;
+            moveValue(j, i);
+            used[j] = false;
+            clearValue(j);
+            i = j;
+        }
+    }
+
+    private void rehash(int capacity){
+        long[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        Object oldValues = valuesArray();
+        allocate(capacity);
+        for(int i = 0; i < oldKeys.length; i++){
+            if(!oldUsed[i]){
+                continue;
+            }
+            int j = hash(oldKeys[i]) & mask;
+            while(used[j]){
+                j = (j + 1) & mask;
+            }
+            used[j] = true;
+            keys[j] = oldKeys[i];
+            copyValue(oldValues, i, j);
+        }
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public boolean isEmpty(){
+        return size == 0;
+    }
+
+    public boolean containsKey(long key){
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * 把所有键拷贝成一个数组，给需要一边遍历一边修改的地方用
+     */
+    public long[] keys(){
+        long[] res = new long[size];
+        int n = 0;
+        for(int i = 0; i < keys.length; i++){
+            if(used[i]){
+                res[n++] = keys[i];
+            }
+        }
+        return res;
+    }
+
+    public void clear(){
+        for(int i = 0; i < keys.length; i++){
+            if(used[i]){
+                used[i] = false;
+                clearValue(i);
+            }
+        }
+        size = 0;
+    }
+
+    // 下面几个是子类管理值数组的钩子，LongSet 没有值，全部空实现
+    protected abstract void allocValues(int capacity);
+    protected abstract Object valuesArray();
+    protected abstract void copyValue(Object oldValues, int from, int to);
+    protected abstract void moveValue(int from, int to);
+    protected abstract void clearValue(int i);
+}
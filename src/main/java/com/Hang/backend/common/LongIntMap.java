@@ -0,0 +1,65 @@
+package com.Hang.backend.common;
+
+/**
+ * long -> int 的开放寻址哈希表，用来代替 HashMap<Long, Integer>，键和值都不装箱
+ *
+ * 不是线程安全的，调用方自己加锁
+ */
+public class LongIntMap extends LongHashTable {
+    private int[] values;
+
+    public LongIntMap() {
+        this(0);
+    }
+
+    public LongIntMap(int expected) {
+        super(expected);
+    }
+
+    /**
+     * 取键对应的值，键不存在时返回 missing
+     */
+    public int get(long key, int missing){
+        int i = indexOf(key);
+        return i < 0 ? missing : values[i];
+    }
+
+    public void put(long key, int value){
+        int i = insertIndex(key);
+        values[i < 0 ? -i - 1 : i] = value;
+    }
+
+    public boolean remove(long key){
+        int i = indexOf(key);
+        if(i < 0){
+            return false;
+        }
+        removeAt(i);
+        return true;
+    }
+
+    @Override
+    protected void allocValues(int capacity) {
+        values = new int[capacity];
+    }
+
+    @Override
+    protected Object valuesArray() {
+        return values;
+    }
+
+    @Override
+    protected void copyValue(Object oldValues, int from, int to) {
+        values[to] = ((int[]) oldValues)[from];
+    }
+
+    @Override
+    protected void moveValue(int from, int to) {
+        values[to] = values[from];
+    }
+
+    @Override
+    protected void clearValue(int i) {
+        values[i] = 0;
+    }
+}
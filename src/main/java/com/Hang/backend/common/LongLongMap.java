@@ -0,0 +1,65 @@
+package com.Hang.backend.common;
+
+/**
+ * long -> long 的开放寻址哈希表，用来代替 HashMap<Long, Long>，键和值都不装箱
+ *
+ * 不是线程安全的，调用方自己加锁
+ */
+public class LongLongMap extends LongHashTable {
+    private long[] values;
+
+    public LongLongMap() {
+        this(0);
+    }
+
+    public LongLongMap(int expected) {
+        super(expected);
+    }
+
+    /**
+     * 取键对应的值，键不存在时返回 missing
+     */
+    public long get(long key, long missing){
+        int i = indexOf(key);
+        return i < 0 ? missing : values[i];
+    }
+
+    public void put(long key, long value){
+        int i = insertIndex(key);
+        values[i < 0 ? -i - 1 : i] = value;
+    }
+
+    public boolean remove(long key){
+        int i = indexOf(key);
+        if(i < 0){
+            return false;
+        }
+        removeAt(i);
+        return true;
+    }
+
+    @Override
+    protected void allocValues(int capacity) {
+        values = new long[capacity];
+    }
+
+    @Override
+    protected Object valuesArray() {
+        return values;
+    }
+
+    @Override
+    protected void copyValue(Object oldValues, int from, int to) {
+        values[to] = ((long[]) oldValues)[from];
+    }
+
+    @Override
+    protected void moveValue(int from, int to) {
+        values[to] = values[from];
+    }
+
+    @Override
+    protected void clearValue(int i) {
+        values[i] = 0;
+    }
+}
@@ -0,0 +1,86 @@
+package com.Hang.backend.common;
+
+import java.util.function.Consumer;
+
+/**
+ * long -> 对象 的开放寻址哈希表，用来代替 HashMap<Long, V>，查找和插入都不装箱
+ *
+ * 不是线程安全的，调用方自己加锁
+ */
+public class LongObjectMap<V> extends LongHashTable {
+    private Object[] values;
+
+    public LongObjectMap() {
+        this(0);
+    }
+
+    public LongObjectMap(int expected) {
+        super(expected);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key){
+        int i = indexOf(key);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    /**
+     * 放入键值对，返回原来的值（没有就是 null）
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value){
+        int i = insertIndex(key);
+        if(i < 0){
+            values[-i - 1] = value;
+            return null;
+        }
+        V old = (V) values[i];
+        values[i] = value;
+        return old;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key){
+        int i = indexOf(key);
+        if(i < 0){
+            return null;
+        }
+        V old = (V) values[i];
+        removeAt(i);
+        return old;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEachValue(Consumer<? super V> action){
+        for(int i = 0; i < keys.length; i++){
+            if(used[i]){
+                action.accept((V) values[i]);
+            }
+        }
+    }
+
+    @Override
+    protected void allocValues(int capacity) {
+        values = new Object[capacity];
+    }
+
+    @Override
+    protected Object valuesArray() {
+        return values;
+    }
+
+    @Override
+    protected void copyValue(Object oldValues, int from, int to) {
+        values[to] = ((Object[]) oldValues)[from];
+    }
+
+    @Override
+    protected void moveValue(int from, int to) {
+        values[to] = values[from];
+    }
+
+    @Override
+    protected void clearValue(int i) {
+        values[i] = null;  // 不清掉的话删除后值对象还被数组引用着，回收不了
+    }
+}
@@ -0,0 +1,68 @@
+package com.Hang.backend.common;
+
+import java.util.function.LongConsumer;
+
+/**
+ * 紧凑的 long 集合（开放寻址），用来代替 Set<Long> / Map<Long, Boolean>，元素直接存在 long[] 里
+ *
+ * 不是线程安全的，调用方自己加锁
+ */
+public class LongSet extends LongHashTable {
+
+    public LongSet() {
+        this(0);
+    }
+
+    public LongSet(int expected) {
+        super(expected);
+    }
+
+    public boolean contains(long key){
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * 加入元素，原来没有返回 true
+     */
+    public boolean add(long key){
+        return insertIndex(key) < 0;
+    }
+
+    public boolean remove(long key){
+        int i = indexOf(key);
+        if(i < 0){
+            return false;
+        }
+        removeAt(i);
+        return true;
+    }
+
+    public void forEach(LongConsumer action){
+        for(int i = 0; i < keys.length; i++){
+            if(used[i]){
+                action.accept(keys[i]);
+            }
+        }
+    }
+
+    @Override
+    protected void allocValues(int capacity) {
+    }
+
+    @Override
+    protected Object valuesArray() {
+        return null;
+    }
+
+    @Override
+    protected void copyValue(Object oldValues, int from, int to) {
+    }
+
+    @Override
+    protected void moveValue(int from, int to) {
+    }
+
+    @Override
+    protected void clearValue(int i) {
+    }
+}
@@ -1,5 +1,7 @@
 package com.Hang.backend.common;
 
+import java.nio.ByteBuffer;
+
 /**
  * DataItem 的数据内容通过 SubArray 对象返回给上层模块，
  * 这使得上层模块可以直接访问数据内容而无需进行拷贝。
@@ -12,13 +14,16 @@ package com.Hang.backend.common;
 /**
  * SubArray 是数据库中处理「页中一段数据」的轻量抽象，start 和 end 用于 定位页中某个数据项的边界，避免不必要的字节数组复制。
  * 就相当于一个数据页有很多个dataItem，就可以用这个来表示各个dataItem
+ *
+ * raw 是页所在的整块页帧（页帧池里的一块堆外 slab，见 FramePool），也可能是 ByteBuffer.wrap 出来的堆上数组（新建的 B+ 树节点等）。
+ * 读写都用 raw 的绝对下标（get(int)/put(int, ...)），不动 position，多个线程可以同时用同一块 raw
  */
 public class SubArray {
-    public byte[] raw;  // 原始数据
+    public ByteBuffer raw;  // 原始数据
     public int start;
     public int end;
 
-    public SubArray(byte[] raw, int start, int end) {
+    public SubArray(ByteBuffer raw, int start, int end) {
         this.raw = raw;
         this.start = start;
         this.end = end;
@@ -3,23 +3,24 @@ package com.Hang.backend.server;
 
 import com.Hang.backend.TBM.BeginRes;
 import com.Hang.backend.TBM.TableManager;
+import com.Hang.backend.VM.Transaction;
 import com.Hang.backend.parser.Parser;
 import com.Hang.backend.parser.statement.*;
 import com.Hang.common.Error;
 
 public class Executor {
-    private long xid;
+    private Transaction t;  // 当前的事务，null 表示不在事务里
     TableManager tbm;
 
     public Executor(TableManager tbm) {
         this.tbm = tbm;
-        this.xid = 0;
+        this.t = null;
     }
 
     public void close() {
-        if(xid != 0) {
-            System.out.println("Abnormal Abort: " + xid);
-            tbm.abort(xid);
+        if(t != null) {
+            System.out.println("Abnormal Abort: " + t.xid);
+            tbm.abort(t);
         }
     }
 
@@ -27,25 +28,25 @@ public class Executor {
         System.out.println("Execute: " + new String(sql));
         Object stat = Parser.Parse(sql);
         if(Begin.class.isInstance(stat)) {
-            if(xid != 0) {
+            if(t != null) {
                 throw Error.NestedTransactionException;
             }
             BeginRes r = tbm.begin((Begin)stat);
-            xid = r.xid;
+            t = r.transaction;
             return r.result;
         } else if(Commit.class.isInstance(stat)) {
-            if(xid == 0) {
+            if(t == null) {
                 throw Error.NoTransactionException;
             }
-            byte[] res = tbm.commit(xid);
-            xid = 0;
+            byte[] res = tbm.commit(t);
+            t = null;
             return res;
         } else if(Abort.class.isInstance(stat)) {
-            if(xid == 0) {
+            if(t == null) {
                 throw Error.NoTransactionException;
             }
-            byte[] res = tbm.abort(xid);
-            xid = 0;
+            byte[] res = tbm.abort(t);
+            t = null;
             return res;
         } else {
             return execute2(stat);
@@ -55,25 +56,25 @@ public class Executor {
     private byte[] execute2(Object stat) throws Exception {
         boolean tmpTransaction = false;
         Exception e = null;
-        if(xid == 0) {
+        if(t == null) {
             tmpTransaction = true;
             BeginRes r = tbm.begin(new Begin());
-            xid = r.xid;
+            t = r.transaction;
         }
         try {
             byte[] res = null;
             if(Show.class.isInstance(stat)) {
-                res = tbm.show(xid);
+                res = tbm.show(t);
             } else if(Create.class.isInstance(stat)) {
-                res = tbm.create(xid, (Create)stat);
+                res = tbm.create(t, (Create)stat);
             } else if(Select.class.isInstance(stat)) {
-                res = tbm.read(xid, (Select)stat);
+                res = tbm.read(t, (Select)stat);
             } else if(Insert.class.isInstance(stat)) {
-                res = tbm.insert(xid, (Insert)stat);
+                res = tbm.insert(t, (Insert)stat);
             } else if(Delete.class.isInstance(stat)) {
-                res = tbm.delete(xid, (Delete)stat);
+                res = tbm.delete(t, (Delete)stat);
             } else if(Update.class.isInstance(stat)) {
-                res = tbm.update(xid, (Update)stat);
+                res = tbm.update(t, (Update)stat);
             }
             return res;
         } catch(Exception e1) {
@@ -82,11 +83,11 @@ public class Executor {
         } finally {
             if(tmpTransaction) {
                 if(e != null) {
-                    tbm.abort(xid);
+                    tbm.abort(t);
                 } else {
-                    tbm.commit(xid);
+                    tbm.commit(t);
                 }
-                xid = 0;
+                t = null;
             }
         }
     }
@@ -22,6 +22,11 @@ public class Parser {
         return buffer.getShort();
     }
 
+    // 从 buf 的 offset 处解析一个 short，页里的字段不用先拷出来
+    public static short parseShort(byte[] buf, int offset) {
+        return (short) (((buf[offset] & 0xff) << 8) | (buf[offset + 1] & 0xff));
+    }
+
     public static byte[] int2Byte(int value) {
         return ByteBuffer.allocate(Integer.SIZE / Byte.SIZE).putInt(value).array();
     }
@@ -36,6 +41,15 @@ public class Parser {
         return buffer.getLong();
     }
 
+    // 从 buf 的 offset 处解析一个 long，不拷贝也不包装
+    public static long parseLong(byte[] buf, int offset) {
+        long res = 0;
+        for(int i = 0; i < 8; i++){
+            res = (res << 8) | (buf[offset + i] & 0xff);
+        }
+        return res;
+    }
+
     public static byte[] long2Byte(long value) {
         return ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(value).array();
     }
@@ -2,17 +2,17 @@ package com.Hang.backend.utils;
 
 /**
  * 经典的一个 地址编码函数
- * 通过将页号（pgno）和槽位号（offset）合并成一个 long 类型的唯一标识符（UID）
+ * 通过将页号（pgno）和槽位号（slot）合并成一个 long 类型的唯一标识符（UID）
  *
  * 将一个数据项的位置 —— 包括：
  * 页号 pgno（表示在哪个 Page 中）
- * 页内偏移量 offset（表示在 Page 内哪个槽位）
+ * 槽号 slot（表示在 Page 内哪个槽位，记录在页内的偏移从槽里查，见 PageX）
  * 编码成一个 long 类型的 UID，用于唯一标识一条记录的位置。
  */
 public class Types {
-    public static long addressToUid(int pgno, short offset) {
+    public static long addressToUid(int pgno, int slot) {  // slot 是 2 字节的无符号数，不能用 short 传，不然大于 32767 的槽号会变成负数把页号也带坏
         long u0 = (long)pgno;
-        long u1 = (long)offset;
+        long u1 = (long)slot;
         return u0 << 32 | u1;
     }
 }
@@ -0,0 +1,121 @@
+package com.Hang.backend.DM;
+
+import com.Hang.backend.DM.dataItem.DataItem;
+import com.Hang.backend.DM.logger.Logger;
+import com.Hang.backend.DM.page.Page;
+import com.Hang.backend.DM.page.PageOne;
+import com.Hang.backend.DM.page.PageX;
+import com.Hang.backend.DM.pageCache.PageCache;
+import com.Hang.backend.TM.TransactionManager;
+import com.Hang.backend.utils.Types;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * 恢复的速度：写 LOG_MB 左右的插入日志，一半是提交了的事务、一半是没结束的事务，再从头恢复一遍，打印每秒扫多少 MB 日志。
+ * 名字不是 *Test，mvn test 默认不跑，要跑的时候用 mvn test -Dtest=RecoverBench
+ */
+public class RecoverBench {
+    private static final int LOG_MB = 64;
+    private static final int RECORD = 200;
+    private static final long MEM = 1L << 26;
+
+    private File tmp;
+    private String path;
+
+    @Before
+    public void setUp() throws Exception {
+        tmp = Files.createTempDirectory("recover").toFile();
+        path = new File(tmp, "t").getPath();
+    }
+
+    @After
+    public void tearDown() {
+        delete(tmp);
+    }
+
+    private static void delete(File f){
+        File[] files = f.listFiles();
+        if(files != null){
+            for(File c : files){
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+
+    private static long size(File f){
+        File[] files = f.listFiles();
+        if(files == null){
+            return f.length();
+        }
+        long res = 0;
+        for(File c : files){
+            res += size(c);
+        }
+        return res;
+    }
+
+    @Test
+    public void recoverThroughput() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        PageCache pc = PageCache.create(path, MEM);
+        Logger lg = Logger.create(path);
+        pc.newPage(PageOne.InitRaw(PageCache.DEFAULT_PAGE_SIZE));
+
+        long committed = tm.begin();
+        long active = tm.begin();
+        int n = (LOG_MB << 20) / (RECORD + 32);
+        long[] uids = new long[n];
+        int head = DataItem.wrapDataItemRaw(new byte[0]).length;  // DataItem 头的长度，数据从这里开始
+        Page pg = null;
+        for(int i = 0; i < n; i++){
+            byte[] raw = DataItem.wrapDataItemRaw(new byte[RECORD]);
+            raw[head] = (byte) i;
+            if(pg == null || PageX.getFreeSpace(pg) < raw.length){
+                if(pg != null){
+                    pg.release();
+                }
+                pg = pc.getPage(pc.newPage(PageX.initRaw(PageCache.DEFAULT_PAGE_SIZE)));
+            }
+            lg.log(Recover.insertLog(i % 2 == 0 ? committed : active, pg, raw));
+            uids[i] = Types.addressToUid(pg.getPageNumber(), PageX.insert(pg, raw));
+        }
+        pg.release();
+        tm.commit(committed);
+        lg.close();
+        pc.close();  // 页都写下去了，恢复照样要把日志从头扫一遍、重做一遍
+
+        long bytes = size(new File(path + ".log"));
+        pc = PageCache.open(path, MEM);
+        lg = Logger.open(path);
+        long start = System.nanoTime();
+        Recover.recover(tm, lg, pc);
+        long ms = Math.max(1, (System.nanoTime() - start) / 1000000);
+        System.out.println("recover " + (bytes >> 20) + " MB of log in " + ms + " ms (" + (bytes * 1000 / ms >> 20) + " MB/s)");
+
+        int bad = 0;
+        for(int i = 0; i < n; i++){
+            pg = pc.getPage((int) (uids[i] >>> 32));
+            int offset = PageX.getSlot(pg, (int) (uids[i] & 0xFFFF));
+            ByteBuffer data = pg.getData();
+            int at = pg.getOffset() + offset;
+            boolean visible = offset != PageX.DEAD && DataItem.isRawValid(data, at);
+            if(visible != (i % 2 == 0) || (visible && data.get(at + head) != (byte) i)){
+                bad++;
+            }
+            pg.release();
+        }
+        lg.close();
+        pc.close();
+        tm.close();
+        assertEquals(0, bad);
+    }
+}
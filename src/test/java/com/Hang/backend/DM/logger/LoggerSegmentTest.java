@@ -0,0 +1,137 @@
+package com.Hang.backend.DM.logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 一批日志正好把活跃段写满（writePos == SEGMENT_SIZE）时的换段、读取和截断
+ */
+public class LoggerSegmentTest {
+    private File tmp;
+    private String path;
+
+    @Before
+    public void setUp() throws Exception {
+        tmp = Files.createTempDirectory("logger").toFile();
+        path = new File(tmp, "t").getPath();
+    }
+
+    @After
+    public void tearDown() {
+        File dir = new File(path + LoggerImpl.LOG_SUFFIX);
+        File[] files = dir.listFiles();
+        if(files != null){
+            for(File f : files){
+                f.delete();
+            }
+        }
+        dir.delete();
+        tmp.delete();
+    }
+
+    // 写一串日志，正好把第 0 段从 Header 之后写满
+    private List<byte[]> fillSegment(Logger lg){
+        List<byte[]> logs = new ArrayList<>();
+        int left = LoggerImpl.SEGMENT_SIZE - LogSegment.HEADER_SIZE;
+        int chunk = 1 << 20;
+        byte b = 0;
+        while(left > 0){
+            int len = Math.min(chunk, left);
+            byte[] data = new byte[len - LoggerImpl.OF_DATA];
+            Arrays.fill(data, b++);
+            lg.log(data);
+            logs.add(data);
+            left -= len;
+        }
+        return logs;
+    }
+
+    private static List<byte[]> readAll(Logger lg){
+        lg.rewind();
+        List<byte[]> res = new ArrayList<>();
+        byte[] log;
+        while((log = lg.next()) != null){
+            res.add(log);
+        }
+        return res;
+    }
+
+    private static void assertLogs(List<byte[]> expect, List<byte[]> actual){
+        assertEquals(expect.size(), actual.size());
+        for(int i = 0; i < expect.size(); i++){
+            assertArrayEquals(expect.get(i), actual.get(i));
+        }
+    }
+
+    @Test
+    public void exactlyFullSegmentIsRolled() {
+        Logger lg = Logger.create(path);
+        List<byte[]> logs = fillSegment(lg);
+        assertEquals(LoggerImpl.lsn(1, LogSegment.HEADER_SIZE), LoggerImpl.lsn(1, 0) + LogSegment.HEADER_SIZE);
+        assertLogs(logs, readAll(lg));
+
+        byte[] after = "after".getBytes();
+        assertEquals(LoggerImpl.lsn(1, LogSegment.HEADER_SIZE), lg.log(after));
+        logs.add(after);
+        assertLogs(logs, readAll(lg));
+        lg.close();
+
+        lg = Logger.open(path);
+        assertLogs(logs, readAll(lg));
+        lg.close();
+    }
+
+    @Test
+    public void reopenAfterExactlyFullSegment() {
+        Logger lg = Logger.create(path);
+        List<byte[]> logs = fillSegment(lg);
+        lg.close();
+
+        lg = Logger.open(path);
+        assertLogs(logs, readAll(lg));
+        byte[] after = "after".getBytes();
+        lg.log(after);
+        logs.add(after);
+        assertLogs(logs, readAll(lg));
+        lg.close();
+    }
+
+    @Test
+    public void truncateAtSegmentEndKeepsActive() {
+        Logger lg = Logger.create(path);
+        fillSegment(lg);
+        lg.truncateBefore(lg.endLsn());  // 检查点：第 0 段已经封存，可以删；活跃段不能删
+
+        byte[] after = "after".getBytes();
+        lg.log(after);
+        assertLogs(List.of(after), readAll(lg));
+        lg.close();
+
+        lg = Logger.open(path);
+        assertLogs(List.of(after), readAll(lg));
+        lg.close();
+    }
+
+    @Test
+    public void truncatePastEndNeverDropsActive() {
+        Logger lg = Logger.create(path);
+        byte[] first = "first".getBytes();
+        lg.log(first);
+        lg.truncateBefore(LoggerImpl.lsn(5, 0));
+        assertLogs(List.of(first), readAll(lg));
+        lg.close();
+
+        lg = Logger.open(path);
+        assertLogs(List.of(first), readAll(lg));
+        lg.close();
+    }
+}
@@ -0,0 +1,110 @@
+package com.Hang.backend.VM;
+
+import com.Hang.backend.DM.DataManager;
+import com.Hang.backend.TM.TransactionManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import static org.junit.Assert.*;
+
+/**
+ * 删除（改 XMAX）要和别的修改一样写日志、放开 before() 拿的锁：删除之后检查点不能卡住，
+ * 检查点之后的删除在崩溃后要能被恢复重做
+ */
+public class DeleteRecoverTest {
+    private static final long MEM = 1L << 22;
+
+    private File tmp;
+    private String path;
+    private File crash;  // 模拟崩溃后磁盘上留下的文件
+
+    @Before
+    public void setUp() throws Exception {
+        tmp = Files.createTempDirectory("delete").toFile();
+        path = new File(tmp, "t").getPath();
+        crash = new File(tmp, "crash");
+        crash.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        delete(tmp);
+    }
+
+    private static void delete(File f){
+        File[] files = f.listFiles();
+        if(files != null){
+            for(File c : files){
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+
+    // 把 tmp 下名字以 t 开头的文件（只拷 dataFiles 为 true 时的 .db/.fsm，或者只拷其余的）拷到 crash 里
+    private void copy(boolean dataFiles) throws Exception {
+        for(File f : tmp.listFiles()){
+            boolean data = f.getName().endsWith(".db") || f.getName().endsWith(".fsm");
+            if(f.getName().startsWith("t") && data == dataFiles){
+                copyTree(f, new File(crash, f.getName()));
+            }
+        }
+    }
+
+    private static void copyTree(File from, File to) throws Exception {
+        if(from.isDirectory()){
+            delete(to);
+            to.mkdir();
+            for(File c : from.listFiles()){
+                copyTree(c, new File(to, c.getName()));
+            }
+        }else{
+            Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void deleteThenCheckpointThenRecover() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, MEM, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+
+        long x = vm.begin(0);
+        long[] uids = new long[3];
+        for(int i = 0; i < uids.length; i++){
+            uids[i] = vm.insert(x, new byte[]{(byte) i, 1, 2, 3});
+        }
+        vm.commit(x);
+
+        x = vm.begin(0);
+        assertTrue(vm.delete(x, uids[0]));
+        vm.commit(x);
+        dm.checkpoint();  // 删除漏放了锁的话这里会一直等下去
+
+        copy(true);  // 检查点把页都写下去了，崩溃时磁盘上的页就是这个样子
+        x = vm.begin(0);
+        assertTrue(vm.delete(x, uids[1]));  // 只在日志里，页没写下去
+        vm.commit(x);
+        copy(false);
+
+        dm.close();
+        tm.close();
+
+        String crashed = new File(crash, "t").getPath();
+        tm = TransactionManager.open(crashed);
+        dm = DataManager.open(crashed, MEM, tm);
+        vm = VersionManager.newVersionManager(tm, dm);
+        x = vm.begin(0);
+        assertNull(vm.read(x, uids[0]));
+        assertNull(vm.read(x, uids[1]));
+        assertArrayEquals(new byte[]{2, 1, 2, 3}, vm.read(x, uids[2]));
+        vm.commit(x);
+        dm.close();
+        tm.close();
+    }
+}